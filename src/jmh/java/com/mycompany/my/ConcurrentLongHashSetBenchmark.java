@@ -0,0 +1,102 @@
+package com.mycompany.my;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение ConcurrentLongHashSet с ConcurrentHashMap.newKeySet() на множестве из 1 и 10 млн chatId: поиск,
+ * добавление с удалением (как /start и /exit) и обход всего множества (как ежедневная рассылка).
+ *
+ * Запуск: mvn -Pjmh verify (см. профиль jmh в pom.xml).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms3g", "-Xmx3g"})
+public class ConcurrentLongHashSetBenchmark {
+
+    // количество lookup-ключей, по которым циклически идут запросы (степень двойки)
+    private static final int KEYS_COUNT = 1 << 20;
+
+    @Param({"1000000", "10000000"})
+    private int size;
+
+    private ConcurrentLongHashSet longSet;
+    private Set<Long> boxedSet;
+
+    // ключи, которые есть в множествах, и ключи, которых там нет
+    private final long[] presentKeys = new long[KEYS_COUNT];
+    private final long[] absentKeys = new long[KEYS_COUNT];
+
+    private int cursor;
+
+    @Setup(Level.Trial)
+    public void fill() {
+        // chatId пользователей Telegram - положительные числа до 2^40 с небольшим
+        SplittableRandom random = new SplittableRandom(42);
+        longSet = new ConcurrentLongHashSet();
+        boxedSet = ConcurrentHashMap.newKeySet();
+        int keyIndex = 0;
+        while (longSet.size() < size) {
+            long chatId = random.nextLong(1, 1L << 41);
+            if (longSet.add(chatId)) {
+                boxedSet.add(chatId);
+                if (keyIndex < KEYS_COUNT) {
+                    presentKeys[keyIndex++] = chatId;
+                }
+            }
+        }
+        for (int i = 0; i < KEYS_COUNT; i++) {
+            absentKeys[i] = -random.nextLong(1, 1L << 41); // отрицательных chatId в множествах нет
+        }
+    }
+
+    // следующий индекс в массивах ключей
+    private int nextIndex() {
+        cursor = (cursor + 1) & (KEYS_COUNT - 1);
+        return cursor;
+    }
+
+    @Benchmark
+    public boolean containsLongSet() {
+        return longSet.contains(presentKeys[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean containsBoxedSet() {
+        return boxedSet.contains(presentKeys[nextIndex()]);
+    }
+
+    @Benchmark
+    public boolean addRemoveLongSet() {
+        long chatId = absentKeys[nextIndex()];
+        longSet.add(chatId);
+        return longSet.remove(chatId);
+    }
+
+    @Benchmark
+    public boolean addRemoveBoxedSet() {
+        long chatId = absentKeys[nextIndex()];
+        boxedSet.add(chatId);
+        return boxedSet.remove(chatId);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void forEachLongSet(Blackhole blackhole) {
+        longSet.forEach(blackhole::consume);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void forEachBoxedSet(Blackhole blackhole) {
+        boxedSet.forEach(blackhole::consume);
+    }
+}
@@ -0,0 +1,65 @@
+package com.mycompany.my;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.ref.Reference;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * Сравнение занимаемой в куче памяти: ConcurrentLongHashSet и ConcurrentHashMap.newKeySet() с 1 и 10 млн chatId.
+ * Память считается как разница занятой кучи после сборки мусора до и после заполнения множества.
+ *
+ * Запуск: mvn -Pjmh verify (см. профиль jmh в pom.xml), нужно около 3 ГБ кучи.
+ */
+public final class ConcurrentLongHashSetFootprint {
+
+    private static final int[] SIZES = {1_000_000, 10_000_000};
+
+    /**
+     * Запрещаем создавать экземпляры класса, так как он состоит только из статичных методов.
+     */
+    private ConcurrentLongHashSetFootprint() {}
+
+    public static void main(String[] args) {
+        System.out.printf("%-32s %12s %12s %10s%n", "множество", "элементов", "МБ", "байт/эл.");
+        for (int size : SIZES) {
+            ConcurrentLongHashSet longSet = new ConcurrentLongHashSet();
+            print("ConcurrentLongHashSet", size, measure(size, longSet::add));
+            longSet = null; // освобождаем память перед следующим замером
+
+            Set<Long> boxedSet = ConcurrentHashMap.newKeySet();
+            print("ConcurrentHashMap.newKeySet()", size, measure(size, boxedSet::add));
+            boxedSet = null;
+        }
+    }
+
+    // заполняет множество size случайными chatId и возвращает, на сколько байт выросла занятая куча
+    private static long measure(int size, LongPredicate add) {
+        long before = usedHeapAfterGc();
+        SplittableRandom random = new SplittableRandom(42);
+        int added = 0;
+        while (added < size) {
+            if (add.test(random.nextLong(1, 1L << 41))) {
+                added++;
+            }
+        }
+        long after = usedHeapAfterGc();
+        Reference.reachabilityFence(add); // множество должно оставаться достижимым до второго замера
+        return after - before;
+    }
+
+    private static long usedHeapAfterGc() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static void print(String name, int size, long bytes) {
+        System.out.printf("%-32s %12d %12.1f %10.1f%n", name, size, bytes / (1024.0 * 1024), (double) bytes / size);
+    }
+}
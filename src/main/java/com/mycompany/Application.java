@@ -1,10 +1,30 @@
 package com.mycompany;
 
+import com.mycompany.cluster.ClusterDatabase;
+import com.mycompany.cluster.ClusterNode;
+import com.mycompany.currency.MoexTradingCalendar;
+import com.mycompany.exchange.ExchangeConnectors;
+import com.mycompany.my.MyTimer;
+import com.mycompany.trace.Tracer;
+import com.zaxxer.hikari.HikariDataSource;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.jdbc.DataSourceBuilder;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.event.ContextClosedEvent;
+import org.springframework.core.env.Environment;
 import org.telegram.telegrambots.meta.TelegramBotsApi;
 import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.generics.BotSession;
 import org.telegram.telegrambots.updatesreceivers.DefaultBotSession;
+
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.sql.SQLException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -13,19 +33,125 @@ import java.util.concurrent.TimeUnit;
 @SpringBootApplication
 public class Application {
 
+    // Сессия long polling, в которой бот получает сообщения пользователей. В кластерном режиме она работает только
+    // на узле-лидере: Telegram допускает только одного получателя сообщений на бота.
+    private static BotSession botSession;
+
+    // Размер пула соединений с БД кластера: узел одновременно делает не больше нескольких запросов - сигнал "я жив",
+    // получение котировок, запись пользователей и чтение пользователей для рассылки.
+    private static final int CLUSTER_DB_POOL_SIZE = 4;
+
     public static void main(String[] args) {
-        SpringApplication.run(Application.class, args);
+        // Все бины создаются лениво, то есть при первом обращении к ним, а не при старте контекста.
+        // Отключить можно свойством spring.main.lazy-initialization=false.
+        ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+                .lazyInitialization(true)
+                .run(args);
+        StartupTimeMeter.contextStarted();
+
+        // Тренировочный запуск для создания AppCDS-архива (см. профиль appcds в pom.xml): поднимаем контекст и сразу
+        // завершаем работу, не регистрируя бота, чтобы не обращаться ни к Telegram, ни к биржам.
+        Environment environment = context.getEnvironment();
+        if (environment.getProperty("app.training-run", Boolean.class, false)) {
+            System.exit(SpringApplication.exit(context));
+        }
+
+        configureStaticComponents(environment);
+
+        // получаем бота из контекста Spring (создается именно здесь, см. ленивую инициализацию выше)
+        TelegramBot bot = context.getBean(TelegramBot.class);
+
+        // Если задано свойство cluster.jdbc-url, бот работает в кластерном режиме (см. пакет com.mycompany.cluster)
+        // и получает сообщения пользователей, только пока его узел - лидер. Иначе бот один и получает их сразу.
+        String clusterJdbcUrl = environment.getProperty("cluster.jdbc-url");
+        if (clusterJdbcUrl == null) {
+            startLongPolling(bot);
+        } else {
+            ClusterDatabase database = new ClusterDatabase(context.getBean("clusterDataSource", DataSource.class));
+            // по умолчанию id узла - "pid@имя_хоста", он уникален для каждой JVM
+            String nodeId = environment.getProperty("cluster.node-id", ManagementFactory.getRuntimeMXBean().getName());
+            ClusterNode clusterNode = new ClusterNode(database, nodeId);
+            // При остановке приложения узел уходит из кластера до закрытия пула соединений: событие о закрытии
+            // контекста публикуется раньше, чем уничтожаются бины.
+            context.addApplicationListener((ApplicationListener<ContextClosedEvent>) event -> clusterNode.stop());
+            try {
+                bot.joinCluster(clusterNode, leader -> {
+                    if (leader) {
+                        startLongPolling(bot);
+                    } else {
+                        stopLongPolling();
+                    }
+                });
+            } catch (SQLException e) {
+                throw new IllegalStateException("Не удалось подключиться к БД кластера " + clusterJdbcUrl, e);
+            }
+        }
+
+        // планируем автоматическую отправку ботом сообщения с котировками ежедневно в 11:00 по мск
+        bot.sendExchangeInfoToAllUsersAt("11:00:00 Europe/Moscow", 1, TimeUnit.DAYS);
 
-        // создаем и регистрируем бота
-        TelegramBot bot = new TelegramBot();
+        // раз в час выводим в консоль статистику работы бота
+        new MyTimer().schedulePeriodicExecution(() -> printStatistics(bot), 1, TimeUnit.HOURS);
+    }
+
+    /**
+     * Пул соединений с общей БД узлов кластера. Как и остальные бины, создается лениво - только в кластерном режиме,
+     * когда main запрашивает его из контекста, и закрывается при остановке приложения.
+     */
+    @Bean
+    HikariDataSource clusterDataSource(Environment environment) {
+        HikariDataSource dataSource = DataSourceBuilder.create()
+                .type(HikariDataSource.class)
+                .url(environment.getProperty("cluster.jdbc-url"))
+                .username(environment.getProperty("cluster.jdbc-user", ""))
+                .password(environment.getProperty("cluster.jdbc-password", ""))
+                .build();
+        dataSource.setPoolName("cluster-db");
+        dataSource.setMaximumPoolSize(CLUSTER_DB_POOL_SIZE);
+        return dataSource;
+    }
+
+    // Передает настройки из application.properties (или других источников свойств Spring) классам со статичными
+    // методами, которые не являются бинами Spring. Вызывается до создания бота, то есть до первого запроса к биржам.
+    private static void configureStaticComponents(Environment environment) {
+        HttpRequestFactory.configureCache(
+                Path.of(environment.getProperty("http.cache.dir", "cache/http")),
+                environment.getProperty("http.cache.max-bytes", Long.class, 50L * 1024 * 1024));
+        MoexTradingCalendar.setExtraHolidays(environment.getProperty("moex.holidays", ""));
+        ExchangeConnectors.setDefaultHedgeDelayMillis(
+                environment.getProperty("exchange.hedge.default-delay-ms", Long.class, 1000L));
+        Tracer.configure(
+                environment.getProperty("tracing.enabled", Boolean.class, true),
+                environment.getProperty("tracing.slow-threshold-ms", Long.class, 1000L),
+                environment.getProperty("tracing.sample-ratio", Double.class, 0.01),
+                Path.of(environment.getProperty("tracing.file", "traces/spans.jsonl")));
+    }
+
+    // регистрирует бота в Telegram при первом вызове или возобновляет получение им сообщений пользователей
+    private static synchronized void startLongPolling(TelegramBot bot) {
         try {
-            TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
-            botsApi.registerBot(bot);
+            if (botSession == null) {
+                TelegramBotsApi botsApi = new TelegramBotsApi(DefaultBotSession.class);
+                botSession = botsApi.registerBot(bot);
+            } else if (!botSession.isRunning()) {
+                botSession.start();
+            }
         } catch (TelegramApiException e) {
             e.printStackTrace();
         }
+    }
 
-        // планируем автоматическую отправку ботом сообщения с котировками ежедневно в 11:00 по мск
-        bot.sendExchangeInfoToAllUsersAt("11:00:00 Europe/Moscow", 1, TimeUnit.DAYS);
+    // останавливает получение ботом сообщений пользователей
+    private static synchronized void stopLongPolling() {
+        if (botSession != null && botSession.isRunning()) {
+            botSession.stop();
+        }
+    }
+
+    // выводит в консоль статистику работы бота
+    private static void printStatistics(TelegramBot bot) {
+        System.out.println(HttpRequestFactory.getCacheStatistics());
+        System.out.println(bot.getRateLimiterStatistics());
+        System.out.println(bot.getOutboundStatistics());
     }
 }
\ No newline at end of file
@@ -0,0 +1,241 @@
+package com.mycompany;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Ограничитель частоты запросов (антифлуд) отдельно для каждого чата, реализованный по алгоритму "token bucket":
+ * у каждого чата есть "ведро" на burst жетонов, каждый запрос забирает один жетон, а жетоны восстанавливаются с
+ * постоянной скоростью. Если жетонов нет, запрос отклоняется.
+ *
+ * Чатов могут быть миллионы, поэтому состояния ведер хранятся не в HashMap<Long, Bucket> (где на каждый чат пришлось
+ * бы несколько объектов: узел, Long, Bucket), а в нескольких примитивных массивах - хэш-таблице с открытой адресацией
+ * и линейным пробированием, где ключ - chatId. Пустая ячейка обозначается chatId = 0: чатов с таким id в Telegram нет.
+ *
+ * Ведро, которое не использовалось дольше, чем нужно для его полного восстановления, ничем не отличается от нового,
+ * поэтому такие записи удаляются из таблицы - так таблица хранит только недавно активные чаты. Удаление идет
+ * понемногу: каждый вызов tryAcquire() проверяет несколько следующих ячеек таблицы (EVICTION_SLOTS_PER_CALL) и удаляет
+ * найденные в них "остывшие" ведра прямо на месте, со сдвигом следующих элементов цепочки. Так время обработки
+ * одного запроса не зависит от количества чатов: нет ни периодической пересборки всей таблицы, ни выделения памяти.
+ * Таблица пересобирается, только когда заполнится больше чем наполовину (с увеличением емкости) или когда после
+ * всплеска активности заполненность упадет ниже 1/8 (с уменьшением), чтобы не держать память под пик вечно.
+ */
+public class ChatRateLimiter {
+
+    /**
+     * Результат проверки запроса
+     */
+    public enum Decision {
+        ALLOWED, // запрос разрешен
+        THROTTLED_NOTIFY, // запрос отклонен, и это первый отклоненный запрос подряд - стоит один раз сообщить об этом
+        THROTTLED_SILENT // запрос отклонен, пользователь уже предупрежден - запрос просто отбрасывается
+    }
+
+    // минимальная емкость таблицы (степень двойки)
+    private static final int MIN_CAPACITY = 1024;
+
+    // Сколько ячеек таблицы проверяет на "остывшие" ведра каждый вызов tryAcquire(). Каждый вызов добавляет в таблицу
+    // не больше одного чата, а таблица заполнена не больше чем наполовину, поэтому проверки нескольких ячеек
+    // достаточно, чтобы удаление успевало за добавлением.
+    private static final int EVICTION_SLOTS_PER_CALL = 4;
+
+    // Таблица уменьшается, когда заполнена меньше чем на 1/SHRINK_OCCUPANCY_DIVISOR, до емкости, при которой она
+    // заполнена на 1/4, - так между уменьшением и следующим увеличением должно добавиться много чатов.
+    private static final int SHRINK_OCCUPANCY_DIVISOR = 8;
+
+    private final float burst; // емкость ведра
+    private final double tokensPerMilli; // скорость восстановления жетонов
+    private final long idleMillisBeforeEviction; // через сколько мс без запросов ведро полностью восстанавливается
+    private final LongSupplier clock; // текущее время в мс
+
+    // хэш-таблица с открытой адресацией: элементы с одинаковым индексом в массивах относятся к одному чату
+    private long[] chatIds;
+    private float[] tokens; // количество жетонов в ведре
+    private long[] lastRefillMillis; // время последнего пересчета количества жетонов
+    private boolean[] throttleNoticeSent; // предупреждение об ограничении уже отправлено
+    private int size;
+
+    private int evictionCursor; // ячейка, с которой продолжится проверка на "остывшие" ведра
+
+    // статистика
+    private final AtomicLong allowedCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+
+    /**
+     * Конструктор
+     *
+     * @param burst максимальное количество запросов, которые можно сделать подряд
+     * @param requestsPerMinute сколько запросов в минуту можно делать постоянно
+     */
+    public ChatRateLimiter(int burst, int requestsPerMinute) {
+        this(burst, requestsPerMinute, System::currentTimeMillis);
+    }
+
+    // конструктор для тестов, в которых время задается вручную
+    ChatRateLimiter(int burst, int requestsPerMinute, LongSupplier clock) {
+        this.clock = clock;
+        this.burst = burst;
+        this.tokensPerMilli = requestsPerMinute / 60_000.0;
+        this.idleMillisBeforeEviction = (long) Math.ceil(burst / tokensPerMilli);
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Проверяет, можно ли обработать очередной запрос из данного чата, и если можно - забирает жетон.
+     */
+    public synchronized Decision tryAcquire(long chatId) {
+        long now = clock.getAsLong();
+        evictIdle(now);
+        if (chatIds.length > MIN_CAPACITY && SHRINK_OCCUPANCY_DIVISOR * size < chatIds.length) {
+            rehash(capacityFor(size), now);
+        }
+
+        int index = indexOf(chatId);
+        if (chatIds[index] == 0) { // новый чат - ведро полное
+            if (2 * (size + 1) > chatIds.length) {
+                rehash(chatIds.length * 2, now);
+                index = indexOf(chatId);
+            }
+            chatIds[index] = chatId;
+            tokens[index] = burst;
+            lastRefillMillis[index] = now;
+            throttleNoticeSent[index] = false;
+            size++;
+        } else { // восстанавливаем жетоны за время, прошедшее с прошлого запроса
+            tokens[index] = (float) Math.min(burst, tokens[index] + (now - lastRefillMillis[index]) * tokensPerMilli);
+            lastRefillMillis[index] = now;
+        }
+
+        if (tokens[index] >= 1) {
+            tokens[index] -= 1;
+            throttleNoticeSent[index] = false;
+            allowedCount.incrementAndGet();
+            return Decision.ALLOWED;
+        }
+
+        throttledCount.incrementAndGet();
+        if (throttleNoticeSent[index]) {
+            return Decision.THROTTLED_SILENT;
+        }
+        throttleNoticeSent[index] = true;
+        return Decision.THROTTLED_NOTIFY;
+    }
+
+    /**
+     * Возвращает текст со статистикой работы ограничителя
+     */
+    public synchronized String getStatistics() {
+        return String.format("Антифлуд: разрешено запросов %d, отклонено %d, отслеживается чатов %d",
+                allowedCount.get(), throttledCount.get(), size);
+    }
+
+    // количество отслеживаемых чатов (для тестов)
+    synchronized int size() {
+        return size;
+    }
+
+    // емкость таблицы (для тестов)
+    synchronized int capacity() {
+        return chatIds.length;
+    }
+
+    // "идеальная" ячейка chatId - с нее начинается поиск chatId в таблице (для тестов)
+    synchronized int homeSlotOf(long chatId) {
+        return mix(chatId) & (chatIds.length - 1);
+    }
+
+    // минимальная емкость (степень двойки), при которой size чатов заполняют таблицу не больше чем на 1/4
+    private static int capacityFor(int size) {
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, 4 * size - 1)) << 1);
+    }
+
+    // возвращает индекс ячейки с данным chatId или индекс пустой ячейки, в которую его нужно положить
+    private int indexOf(long chatId) {
+        int mask = chatIds.length - 1;
+        int index = mix(chatId) & mask;
+        while (chatIds[index] != 0 && chatIds[index] != chatId) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    // перемешивает биты chatId, чтобы близкие id не попадали в соседние ячейки (финализатор из MurmurHash3)
+    private static int mix(long chatId) {
+        long hash = chatId;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+    // Проверяет следующие EVICTION_SLOTS_PER_CALL ячеек таблицы и удаляет из них ведра, которые не использовались
+    // дольше, чем нужно для их полного восстановления.
+    private void evictIdle(long now) {
+        int mask = chatIds.length - 1;
+        for (int i = 0; i < EVICTION_SLOTS_PER_CALL; i++) {
+            int index = evictionCursor;
+            if (chatIds[index] != 0 && now - lastRefillMillis[index] >= idleMillisBeforeEviction) {
+                // на место удаленного может сдвинуться следующий элемент цепочки - проверим эту ячейку еще раз
+                removeAt(index);
+            } else {
+                evictionCursor = (index + 1) & mask;
+            }
+        }
+    }
+
+    // Удаляет элемент из ячейки со сдвигом: элементы, идущие за ним в той же цепочке пробирования, сдвигаются на
+    // освободившееся место, если их "идеальная" ячейка не лежит между освободившейся ячейкой и их текущей. Так в
+    // таблице не остается пустых ячеек, разрывающих цепочки, и не нужны специальные метки удаленных элементов.
+    private void removeAt(int index) {
+        int mask = chatIds.length - 1;
+        int free = index;
+        int next = (free + 1) & mask;
+        while (chatIds[next] != 0) {
+            int ideal = mix(chatIds[next]) & mask;
+            boolean idealBetweenFreeAndNext = free <= next
+                    ? free < ideal && ideal <= next
+                    : free < ideal || ideal <= next;
+            if (!idealBetweenFreeAndNext) {
+                chatIds[free] = chatIds[next];
+                tokens[free] = tokens[next];
+                lastRefillMillis[free] = lastRefillMillis[next];
+                throttleNoticeSent[free] = throttleNoticeSent[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        chatIds[free] = 0;
+        size--;
+    }
+
+    // Пересобирает таблицу с новой емкостью (при ее заполнении больше чем наполовину или меньше чем на 1/8),
+    // пропуская ведра, которые уже полностью восстановились.
+    private void rehash(int newCapacity, long now) {
+        long[] oldChatIds = chatIds;
+        float[] oldTokens = tokens;
+        long[] oldLastRefillMillis = lastRefillMillis;
+        boolean[] oldThrottleNoticeSent = throttleNoticeSent;
+
+        allocate(newCapacity);
+        size = 0;
+        evictionCursor = 0;
+        for (int i = 0; i < oldChatIds.length; i++) {
+            if (oldChatIds[i] != 0 && now - oldLastRefillMillis[i] < idleMillisBeforeEviction) {
+                int index = indexOf(oldChatIds[i]);
+                chatIds[index] = oldChatIds[i];
+                tokens[index] = oldTokens[i];
+                lastRefillMillis[index] = oldLastRefillMillis[i];
+                throttleNoticeSent[index] = oldThrottleNoticeSent[i];
+                size++;
+            }
+        }
+    }
+
+    // создает пустые массивы таблицы указанной емкости
+    private void allocate(int capacity) {
+        chatIds = new long[capacity];
+        tokens = new float[capacity];
+        lastRefillMillis = new long[capacity];
+        throttleNoticeSent = new boolean[capacity];
+    }
+}
@@ -1,18 +1,29 @@
 package com.mycompany;
 
-import com.mycompany.currency.CurrencyPair;
 import com.mycompany.currency.MoexCurrencyPair;
-import com.mycompany.currency.BybitCryptocurrencyPair;
+import com.mycompany.currency.MoexHistory;
+import com.mycompany.currency.MoexTradingCalendar;
+import com.mycompany.trace.Span;
+import com.mycompany.trace.Tracer;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 
 import java.io.*;
+import java.nio.file.Path;
 import java.time.LocalDate;
+import java.time.ZonedDateTime;
+import java.util.Optional;
+import java.util.function.Supplier;
 
 /**
  * Класс, содержащий статичные методы, создающие различные GET-запросы к биржам.
@@ -24,67 +35,262 @@ public class HttpRequestFactory {
      */
     private HttpRequestFactory() {}
 
+    // таймаут установления соединения с биржей
+    private static final int CONNECT_TIMEOUT_MILLIS = 5_000;
+
+    // таймаут ожидания данных от биржи (между пакетами ответа)
+    private static final int SOCKET_TIMEOUT_MILLIS = 10_000;
+
+    // таймаут ожидания свободного соединения в пуле
+    private static final int CONNECTION_REQUEST_TIMEOUT_MILLIS = 10_000;
+
+    // Максимальное количество одновременных соединений с одним хостом. Пул должен вмещать все параллельные загрузки
+    // страниц истории (см. MoexHistory) и еще одно соединение для обновления котировок, иначе загрузка истории
+    // задерживала бы обновление котировок, а параллельная загрузка упиралась бы в размер пула.
+    private static final int MAX_CONNECTIONS_PER_ROUTE = MoexHistory.PAGE_LOADER_THREADS + 1;
+
+    // максимальное количество одновременных соединений со всеми биржами
+    private static final int MAX_CONNECTIONS_TOTAL = 4 * MAX_CONNECTIONS_PER_ROUTE;
+
+    // Общий для всех запросов http-клиент: переиспользует соединения с биржами вместо того, чтобы каждый раз
+    // открывать новое. Создание клиента не требует обращения к сети.
+    // Без таймаутов зависшая биржа навсегда блокировала бы поток, ожидающий ее ответа (например, обновление котировок
+    // в CurrencyQuotes.refresh(), которое держит блокировку котировок), поэтому все таймауты заданы явно.
+    private static final CloseableHttpClient httpClient = createHttpClient();
+
+    // Возможность прервать http-запросы, которые отправляет текущий поток (см. sendAbortable())
+    private static final ThreadLocal<AbortHandle> currentAbortHandle = new ThreadLocal<>();
+
+    // Кэш ответов бирж. Директорию и максимальный размер кэша на диске задают свойства http.cache.dir и
+    // http.cache.max-bytes (см. configureCache()).
+    private static volatile HttpResponseCache cache = new HttpResponseCache(Path.of("cache/http"), 50L * 1024 * 1024);
+
+    // создает http-клиент с пулом соединений и таймаутами
+    private static CloseableHttpClient createHttpClient() {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+        connectionManager.setMaxTotal(MAX_CONNECTIONS_TOTAL);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(CONNECTION_REQUEST_TIMEOUT_MILLIS)
+                .build();
+
+        return HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+    }
+
     /**
-     * Отправляет http-запрос к API Мосбиржи (ISS MOEX API) на получение биржевых данных о торгах данной
-     * валютной пары за текущую или последнюю (если текущая уже закончилась) торговую сессию. Пример ответа на такой
-     * запрос приведен в файле: src/example/moex_usd_rub_marketdata.json.
-     * @param currencyPair - валютная пара, для которой отправляем запрос
+     * Задает директорию и максимальный размер кэша ответов бирж на диске. Вызывается при запуске приложения, до
+     * первого запроса к биржам.
+     *
+     * @param directory директория кэша (свойство http.cache.dir)
+     * @param maxDiskBytes максимальный суммарный размер файлов кэша (свойство http.cache.max-bytes)
      */
-    public static String newMoexLastTradingDayDataRequest(MoexCurrencyPair currencyPair) {
-        return newGetRequest(currencyPair, null, null);
+    public static void configureCache(Path directory, long maxDiskBytes) {
+        cache = new HttpResponseCache(directory, maxDiskBytes);
     }
 
     /**
-     * Отправляет http-запрос к API Мосбиржи (ISS MOEX API) на получение биржевых данных о торгах данной
-     * валютной пары за предыдущие торговые сессии в указанном диапазоне дат. Пример ответа на такой запрос приведен
-     * в файле: src/example/moex_history_data.json.
+     * Возвращает текст со статистикой работы кэша ответов бирж.
+     */
+    public static String getCacheStatistics() {
+        return cache.getStatistics();
+    }
+
+    /**
+     * Отправляет http-запрос к API Мосбиржи (ISS MOEX API) на получение одной страницы истории торгов данной валютной
+     * пары в указанном диапазоне дат. Мосбиржа отдает историю страницами (по 100 торговых дней), номер первой строки
+     * страницы задается параметром start, а общее количество строк возвращается в блоке "history.cursor" ответа.
+     * В ответе остаются только колонки с датой и ценами OHLC, данные отсортированы по дате по возрастанию.
      * @param currencyPair - валютная пара, для которой отправляем запрос
-     * @param fromDate - начальная дата диапазона дат, за который хотим получить данные о торгах
-     * @param tillDate - конечная дата диапазона дат, за который хотим получить данные о торгах (что если сюда передать сегодняшнюю дату ???)
+     * @param fromDate - начальная дата диапазона дат
+     * @param tillDate - конечная дата диапазона дат
+     * @param start - номер первой строки страницы (начиная с 0)
+     */
+    public static String newMoexHistoryPageRequest(MoexCurrencyPair currencyPair, LocalDate fromDate, LocalDate tillDate,
+                                                   int start) {
+        String uri = "https://iss.moex.com/iss/history/engines/currency/markets/selt/boards/CETS/securities/" +
+                currencyPair.getTicker() + ".json?iss.meta=off&iss.only=history,history.cursor" +
+                "&history.columns=TRADEDATE,OPEN,HIGH,LOW,CLOSE&from=" + fromDate + "&till=" + tillDate +
+                "&start=" + start;
+        return newGetRequest(uri, isImmutable(fromDate, tillDate));
+    }
+
+    /**
+     * Отправляет GET-запрос с данным URL к произвольной бирже. Используется коннекторами к биржам
+     * (см. com.mycompany.exchange.ExchangeConnector), которые сами формируют URL запросов, поэтому для добавления новой
+     * биржи менять этот класс не нужно.
+     * @param uri - URL запроса
      */
-    public static String newMoexPreviousDaysDataRequest(MoexCurrencyPair currencyPair, LocalDate fromDate, LocalDate tillDate) {
-        return newGetRequest(currencyPair, fromDate, tillDate);
+    public static String newGetRequest(String uri) {
+        return newGetRequest(uri, false);
+    }
+
+    /**
+     * Отправляет GET-запрос с данным URL за данными о торгах в указанном диапазоне дат. Если диапазон заканчивается
+     * раньше последнего торгового дня, итоги которого Мосбиржа уже опубликовала, ответ больше никогда не изменится и
+     * сохраняется в кэше на диске навсегда.
+     * @param uri - URL запроса
+     * @param fromDate - начальная дата диапазона дат, за который запрашиваются данные
+     * @param tillDate - конечная дата диапазона дат, за который запрашиваются данные
+     */
+    public static String newGetRequest(String uri, LocalDate fromDate, LocalDate tillDate) {
+        return newGetRequest(uri, isImmutable(fromDate, tillDate));
+    }
+
+    /**
+     * Возможность прервать http-запрос, который отправляется в другом потоке. Нужна там, где ответ на запрос может
+     * стать ненужным раньше, чем он придет (например, проигравший запрос хеджированного запроса котировки, см.
+     * com.mycompany.exchange.ExchangeConnectors): отмена задачи потока не останавливает уже отправленный запрос, и
+     * без abort() он занимал бы соединение с биржей до таймаута.
+     */
+    public static final class AbortHandle {
+
+        private HttpUriRequest request; // запрос, который сейчас отправляется, или null
+        private boolean aborted;
+        private boolean finished;
+
+        /**
+         * Прерывает текущий http-запрос, а если его еще нет - все следующие запросы в рамках sendAbortable().
+         * Запрос завершается исключением RuntimeException. После завершения sendAbortable() ничего не делает.
+         */
+        public synchronized void abort() {
+            if (finished) {
+                return;
+            }
+            aborted = true;
+            if (request != null) {
+                request.abort();
+            }
+        }
+
+        // запоминает отправляемый запрос, а если abort() уже был вызван, сразу прерывает его
+        private synchronized void register(HttpUriRequest newRequest) {
+            request = newRequest;
+            if (aborted) {
+                newRequest.abort();
+            }
+        }
+
+        private synchronized void finish() {
+            finished = true;
+            request = null;
+        }
     }
 
-    /** Отправляет http-запрос к API биржи Bybit на получение биржевых данных о торгах данной
-     * валютной пары за текущую торговую сессию. Пример ответа на такой запрос приведен в файле:
-     * src/example/bybit_wlkn_usdt_marketdata.json.
-     * @param currencyPair - криптовалютная пара на бирже Bybit
+    /**
+     * Выполняет action, все http-запросы которого можно прервать вызовом abortHandle.abort() из другого потока.
+     *
+     * @param abortHandle возможность прервать запросы, используется для одного вызова этого метода
+     * @param action действие, отправляющее http-запросы через методы этого класса
      */
-    public static String newBybitMarketDataRequest(BybitCryptocurrencyPair currencyPair) {
-        return newGetRequest(currencyPair, null, null);
+    public static <T> T sendAbortable(AbortHandle abortHandle, Supplier<T> action) {
+        currentAbortHandle.set(abortHandle);
+        try {
+            return action.get();
+        } finally {
+            currentAbortHandle.remove();
+            abortHandle.finish();
+        }
+    }
+
+    // Шаблонный метод для отправки http-запроса с помощью Apache Http Client, immutable - признак того, что ответ на
+    // этот запрос никогда не изменится.
+    // Опубликованные итоги торгов за прошедшие дни уже никогда не изменятся, поэтому ответы на такие запросы берутся
+    // из кэша на диске, а к бирже запрос отправляется только один раз. Остальные ответы повторно проверяются у биржи,
+    // если она прислала заголовки ETag/Last-Modified.
+    private static String newGetRequest(String uri, boolean immutable) {
+        try (Span span = Tracer.startSpan("HTTP GET")) {
+            span.setAttribute("http.url", uri);
+            try {
+                return newGetRequest(uri, immutable, span);
+            } catch (RuntimeException e) {
+                span.recordError(e);
+                throw e;
+            }
+        }
     }
 
-    // шаблонный метод для отправки http-запроса с помощью Apache Http Client
-    private static String newGetRequest(CurrencyPair currencyPair, LocalDate fromDate, LocalDate tillDate) {
-        final CloseableHttpClient httpclient = HttpClients.createDefault();
-        final HttpUriRequest httpGet = new HttpGet(getRequestUri(currencyPair, fromDate, tillDate));
-        try (CloseableHttpResponse httpResponse = httpclient.execute(httpGet)) {
+    // отправляет http-запрос, span - отрезок трассы для этого запроса
+    private static String newGetRequest(String uri, boolean immutable, Span span) {
+        if (immutable) {
+            Optional<String> cachedResponse = cache.getImmutable(uri);
+            span.setAttribute("cache", cachedResponse.isPresent() ? "disk" : "miss");
+            return cachedResponse.orElseGet(() -> {
+                String response = executeGetRequest(uri, null).body();
+                cache.putImmutable(uri, response);
+                return response;
+            });
+        }
+
+        HttpResponseCache.ValidatedResponse cachedResponse = cache.getValidated(uri);
+        HttpResponseCache.ValidatedResponse response = executeGetRequest(uri, cachedResponse);
+        if (response == cachedResponse) {
+            span.setAttribute("cache", "not_modified");
+            cache.notModified(cachedResponse);
+        } else {
+            span.setAttribute("cache", "miss");
+            cache.putValidated(uri, response);
+        }
+        return response.body();
+    }
+
+    // Отправляет http-запрос. Если передан сохраненный ранее ответ, добавляет в запрос заголовки для его повторной
+    // проверки и при ответе биржи 304 Not Modified возвращает этот же сохраненный ответ.
+    private static HttpResponseCache.ValidatedResponse executeGetRequest(String uri,
+                                                                         HttpResponseCache.ValidatedResponse cachedResponse) {
+        final HttpGet httpGet = new HttpGet(uri);
+        AbortHandle abortHandle = currentAbortHandle.get();
+        if (abortHandle != null) {
+            abortHandle.register(httpGet);
+        }
+        if (cachedResponse != null) {
+            if (cachedResponse.etag() != null) {
+                httpGet.addHeader(HttpHeaders.IF_NONE_MATCH, cachedResponse.etag());
+            }
+            if (cachedResponse.lastModified() != null) {
+                httpGet.addHeader(HttpHeaders.IF_MODIFIED_SINCE, cachedResponse.lastModified());
+            }
+        }
+
+        try (CloseableHttpResponse httpResponse = httpClient.execute(httpGet)) {
+            int statusCode = httpResponse.getStatusLine().getStatusCode();
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED && cachedResponse != null) {
+                return cachedResponse;
+            }
+
             final HttpEntity responseEntity = httpResponse.getEntity();
             String response = EntityUtils.toString(responseEntity);
-            httpclient.close();
-            return response;
+            if (statusCode != HttpStatus.SC_OK) {
+                throw new IOException("биржа вернула код ответа " + statusCode + " на запрос " + uri);
+            }
+            return new HttpResponseCache.ValidatedResponse(response, getHeaderValue(httpResponse, HttpHeaders.ETAG),
+                    getHeaderValue(httpResponse, HttpHeaders.LAST_MODIFIED));
         } catch (IOException e) {
+            if (httpGet.isAborted()) {
+                throw new RuntimeException("запрос прерван: " + uri, e); // ответ больше не нужен, это не ошибка
+            }
             e.printStackTrace();
             throw new RuntimeException();
         }
     }
 
-    // возвращает URL запроса в зависимости от параметров
-    private static String getRequestUri(CurrencyPair currencyPair, LocalDate fromDate, LocalDate tillDate) {
-        String ticker = currencyPair.getTicker();
-        if (currencyPair instanceof MoexCurrencyPair) {
-            if (fromDate != null && tillDate != null) {
-                return  "https://iss.moex.com/iss/history/engines/currency/markets/selt/boards/CETS/securities/" +
-                        ticker + ".json?iss.meta=off&from=" + fromDate + "&till=" + tillDate + "&sort_order=desc";
-            } else {
-                return  "https://iss.moex.com/iss/engines/currency/markets/selt/boards/CETS/securities/"
-                        + ticker + ".json?iss.meta=off&iss.only=marketdata";
-            }
-        } else if (currencyPair instanceof BybitCryptocurrencyPair) {
-            return  "https://api.bybit.com/v5/market/tickers?category=spot&symbol=" + ticker;
-        }
+    // возвращает значение заголовка http-ответа или null, если такого заголовка в ответе нет
+    private static String getHeaderValue(CloseableHttpResponse httpResponse, String headerName) {
+        Header header = httpResponse.getFirstHeader(headerName);
+        return header != null ? header.getValue() : null;
+    }
 
-        throw new IllegalArgumentException();
+    // Возвращает true, если запрос касается только дат раньше последнего торгового дня, итоги которого Мосбиржа уже
+    // опубликовала, то есть ответ на него уже никогда не изменится. Запрос, заканчивающийся вчерашним днем, сюда не
+    // попадает: рано утром итоговой строки за вчера в ответе может еще не быть, и неполный ответ навсегда остался бы
+    // в кэше. Такие ответы кэшируются с повторной проверкой у биржи.
+    private static boolean isImmutable(LocalDate fromDate, LocalDate tillDate) {
+        return fromDate != null && tillDate != null
+                && tillDate.isBefore(MoexTradingCalendar.lastPublishedTradingDay(ZonedDateTime.now()));
     }
 }
\ No newline at end of file
@@ -0,0 +1,212 @@
+package com.mycompany;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Кэш http-ответов бирж. Используется классом HttpRequestFactory и хранит ответы двух видов:
+ * 1) неизменяемые ответы (например, данные Мосбиржи о торгах за прошедшие даты) - хранятся на диске в виде файлов,
+ *    имя файла - хэш URL запроса. Общий размер файлов ограничен, при его превышении удаляются файлы, к которым дольше
+ *    всего не обращались;
+ * 2) изменяемые ответы, для которых биржа прислала заголовки ETag и/или Last-Modified - хранятся в памяти, при
+ *    повторном запросе эти заголовки отправляются бирже в If-None-Match/If-Modified-Since, и если данные не
+ *    изменились (ответ 304 Not Modified), используется сохраненный ответ.
+ * Ошибки работы с диском не прерывают запрос к бирже: в этом случае кэш просто считается промахнувшимся.
+ */
+public class HttpResponseCache {
+
+    // максимальное количество изменяемых ответов, хранимых в памяти
+    private static final int MAX_VALIDATED_RESPONSES = 256;
+
+    private final Path directory; // директория для хранения неизменяемых ответов
+    private final long maxDiskBytes; // максимальный суммарный размер файлов в директории
+
+    // Текущий суммарный размер файлов в директории. Считается при первом обращении к диску, а не в конструкторе,
+    // чтобы создание кэша при старте приложения обходилось без чтения диска. -1 - еще не посчитан.
+    private long diskBytes = -1;
+
+    // изменяемые ответы с заголовками для повторной проверки, LinkedHashMap в режиме access-order работает как LRU
+    private final Map<String, ValidatedResponse> validatedResponses = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ValidatedResponse> eldest) {
+            return size() > MAX_VALIDATED_RESPONSES;
+        }
+    };
+
+    // статистика
+    private final AtomicLong hits = new AtomicLong(); // ответ взят с диска
+    private final AtomicLong notModified = new AtomicLong(); // биржа ответила 304, ответ взят из памяти
+    private final AtomicLong misses = new AtomicLong(); // ответ полностью загружен с биржи
+    private final AtomicLong bytesSaved = new AtomicLong(); // сколько байт не пришлось загружать благодаря кэшу
+
+    /**
+     * Конструктор
+     *
+     * @param directory директория для хранения неизменяемых ответов (создается при первой записи)
+     * @param maxDiskBytes максимальный суммарный размер файлов в директории
+     */
+    public HttpResponseCache(Path directory, long maxDiskBytes) {
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+    }
+
+    /**
+     * Возвращает сохраненный на диске неизменяемый ответ на запрос с данным URL.
+     *
+     * @return Optional с ответом или пустой Optional, если такого ответа в кэше нет
+     */
+    public Optional<String> getImmutable(String uri) {
+        Path file = fileFor(uri);
+        try {
+            String response = Files.readString(file, StandardCharsets.UTF_8);
+            // обновляем время изменения файла, по нему определяется, к каким файлам дольше всего не обращались
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            hits.incrementAndGet();
+            bytesSaved.addAndGet(response.getBytes(StandardCharsets.UTF_8).length);
+            return Optional.of(response);
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Сохраняет на диск неизменяемый ответ на запрос с данным URL. Если после этого суммарный размер файлов превышает
+     * допустимый, удаляет файлы, к которым дольше всего не обращались.
+     */
+    public synchronized void putImmutable(String uri, String response) {
+        misses.incrementAndGet();
+        try {
+            Files.createDirectories(directory);
+            if (diskBytes < 0) {
+                diskBytes = calculateDiskBytes();
+            }
+
+            // пишем во временный файл и переименовываем его, чтобы никто не прочитал недописанный файл
+            Path file = fileFor(uri);
+            Path tempFile = Files.createTempFile(directory, "response", ".tmp");
+            Files.writeString(tempFile, response, StandardCharsets.UTF_8);
+            diskBytes -= Files.exists(file) ? Files.size(file) : 0;
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            diskBytes += Files.size(file);
+
+            evictIfNecessary();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Возвращает сохраненный в памяти изменяемый ответ на запрос с данным URL вместе с заголовками для его повторной
+     * проверки.
+     *
+     * @return сохраненный ответ или null, если такого ответа в кэше нет
+     */
+    public synchronized ValidatedResponse getValidated(String uri) {
+        return validatedResponses.get(uri);
+    }
+
+    /**
+     * Сохраняет в памяти изменяемый ответ на запрос с данным URL. Ответ сохраняется, только если биржа прислала хотя
+     * бы один из заголовков ETag и Last-Modified, иначе повторно проверить его нельзя.
+     */
+    public synchronized void putValidated(String uri, ValidatedResponse response) {
+        misses.incrementAndGet();
+        if (response.etag() != null || response.lastModified() != null) {
+            validatedResponses.put(uri, response);
+        } else {
+            validatedResponses.remove(uri);
+        }
+    }
+
+    /**
+     * Учитывает в статистике ответ 304 Not Modified, полученный при повторной проверке сохраненного ответа.
+     */
+    public void notModified(ValidatedResponse response) {
+        notModified.incrementAndGet();
+        bytesSaved.addAndGet(response.body().getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    /**
+     * Возвращает текст со статистикой работы кэша.
+     */
+    public String getStatistics() {
+        long hitsCount = hits.get() + notModified.get();
+        long total = hitsCount + misses.get();
+        double hitRatio = total == 0 ? 0 : 100.0 * hitsCount / total;
+        return String.format("HTTP-кэш: попаданий %d (с диска %d, ответов 304 %d), промахов %d, доля попаданий %.1f%%, " +
+                        "сэкономлено %d байт", hitsCount, hits.get(), notModified.get(), misses.get(), hitRatio,
+                bytesSaved.get());
+    }
+
+    // удаляет файлы, к которым дольше всего не обращались, пока суммарный размер файлов превышает допустимый
+    private void evictIfNecessary() throws IOException {
+        if (diskBytes <= maxDiskBytes) {
+            return;
+        }
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(directory)) {
+            files = stream.filter(Files::isRegularFile)
+                    .sorted(Comparator.comparing(HttpResponseCache::lastModifiedTime))
+                    .toList();
+        }
+        for (Path file : files) {
+            if (diskBytes <= maxDiskBytes) {
+                break;
+            }
+            long size = Files.size(file);
+            if (Files.deleteIfExists(file)) {
+                diskBytes -= size;
+            }
+        }
+    }
+
+    // считает суммарный размер файлов в директории
+    private long calculateDiskBytes() throws IOException {
+        try (Stream<Path> stream = Files.list(directory)) {
+            long sum = 0;
+            for (Path file : stream.filter(Files::isRegularFile).toList()) {
+                sum += Files.size(file);
+            }
+            return sum;
+        }
+    }
+
+    // возвращает время последнего изменения файла, а если его не удалось получить - минимально возможное время
+    private static FileTime lastModifiedTime(Path file) {
+        try {
+            return Files.getLastModifiedTime(file);
+        } catch (IOException e) {
+            return FileTime.fromMillis(0);
+        }
+    }
+
+    // возвращает путь к файлу с ответом на запрос с данным URL: имя файла - SHA-256 хэш URL
+    private Path fileFor(String uri) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(uri.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(hash) + ".json");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 обязан поддерживаться любой JVM
+        }
+    }
+
+    /**
+     * Изменяемый ответ биржи вместе с заголовками для его повторной проверки.
+     *
+     * @param body тело ответа
+     * @param etag значение заголовка ETag или null
+     * @param lastModified значение заголовка Last-Modified или null
+     */
+    public record ValidatedResponse(String body, String etag, String lastModified) {}
+}
@@ -0,0 +1,81 @@
+package com.mycompany;
+
+import com.mycompany.currency.CurrencyPair;
+import com.mycompany.currency.CurrencyQuotes;
+import com.mycompany.currency.QuotesSnapshot;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.inputmessagecontent.InputTextMessageContent;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResult;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.result.InlineQueryResultArticle;
+
+import java.util.*;
+
+/**
+ * Готовые ответы на inline-запросы (когда пользователь набирает в любом чате "@имя_бота usd"), построенные по одному
+ * снимку котировок. Для каждой валютной пары заранее создается результат inline-запроса, и он кладется в Map по всем
+ * префиксам кодов обеих валют пары ("u", "us", "usd", "r", "ru", "rub"). Поэтому ответ на запрос - это просто
+ * поиск по Map, без перебора валютных пар и форматирования котировок.
+ * Индекс неизменяемый: после обновления котировок строится новый индекс по новому снимку.
+ */
+public class InlineQuotesIndex {
+
+    // Коды валют, которые в сообщениях бота обозначаются символами. Пользователь будет искать их по буквенному коду.
+    private static final Map<String, String> CURRENCY_SYMBOL_CODES = Map.of("$", "usd", "€", "eur");
+
+    private final long snapshotVersion; // версия снимка котировок, по которому построен индекс
+    private final List<InlineQueryResult> allResults = new ArrayList<>(); // результаты для пустого запроса
+    private final Map<String, List<InlineQueryResult>> resultsByPrefix = new HashMap<>();
+
+    /**
+     * Строит индекс по снимку котировок
+     */
+    public InlineQuotesIndex(QuotesSnapshot snapshot) {
+        this.snapshotVersion = snapshot.version();
+        String fiatDescription = "Мосбиржа, на " + snapshot.quotesUpdateTime() + " по мск";
+        snapshot.fiatQuotes().forEach((currencyPair, quote) -> add(currencyPair, quote, fiatDescription));
+        snapshot.cryptoQuotes().forEach((currencyPair, quote) -> add(currencyPair, quote, "Криптовалюты"));
+    }
+
+    /**
+     * Возвращает версию снимка котировок, по которому построен индекс
+     */
+    public long getSnapshotVersion() {
+        return snapshotVersion;
+    }
+
+    /**
+     * Возвращает результаты для inline-запроса: валютные пары, код одной из валют которых начинается с первого слова
+     * запроса (без учета регистра). Для пустого запроса возвращает все валютные пары.
+     */
+    public List<InlineQueryResult> find(String query) {
+        String prefix = query.trim().toLowerCase(Locale.ROOT);
+        int spaceIndex = prefix.indexOf(' ');
+        if (spaceIndex >= 0) {
+            prefix = prefix.substring(0, spaceIndex);
+        }
+        if (prefix.isEmpty()) {
+            return allResults;
+        }
+        return resultsByPrefix.getOrDefault(prefix, List.of());
+    }
+
+    // создает результат inline-запроса для валютной пары и добавляет его в индекс по префиксам кодов обеих валют
+    private void add(CurrencyPair currencyPair, double quote, String description) {
+        String quoteText = CurrencyQuotes.formatQuote(currencyPair, quote);
+
+        InlineQueryResultArticle result = new InlineQueryResultArticle();
+        result.setId(currencyPair.toString());
+        result.setTitle(quoteText);
+        result.setDescription(description);
+        result.setInputMessageContent(new InputTextMessageContent(quoteText + " (" + description + ")"));
+        allResults.add(result);
+
+        Set<String> prefixes = new HashSet<>(); // Set, чтобы не добавить пару дважды, если коды валют начинаются одинаково
+        for (String currencyCode : List.of(currencyPair.getFirstCurrencyCode(), currencyPair.getSecondCurrencyCode())) {
+            String code = CURRENCY_SYMBOL_CODES.getOrDefault(currencyCode, currencyCode.toLowerCase(Locale.ROOT));
+            for (int length = 1; length <= code.length(); length++) {
+                prefixes.add(code.substring(0, length));
+            }
+        }
+        prefixes.forEach(prefix -> resultsByPrefix.computeIfAbsent(prefix, key -> new ArrayList<>()).add(result));
+    }
+}
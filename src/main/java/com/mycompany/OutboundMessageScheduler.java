@@ -0,0 +1,533 @@
+package com.mycompany;
+
+import com.mycompany.trace.Span;
+import com.mycompany.trace.Tracer;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.exceptions.TelegramApiRequestException;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Планировщик исходящих сообщений бота: через него проходят все отправки сообщений пользователям.
+ *
+ * Telegram ограничивает общую частоту отправки сообщений ботом (около 30 сообщений в секунду), а при превышении
+ * отвечает ошибкой 429 с указанием, через сколько секунд можно повторить запрос (retry_after). Поэтому все отправки
+ * расходуют жетоны одного общего "ведра" (token bucket), которое пополняется с заданной скоростью.
+ *
+ * Сообщения ждут отправки в очередях-полосах с разным приоритетом: ответы на команды пользователей (INTERACTIVE)
+ * всегда отправляются раньше сообщений рассылки (BROADCAST), поэтому пользователь, отправивший /start во время
+ * ежедневной рассылки, не ждет, пока она закончится. У полосы может быть и собственное, более строгое ограничение
+ * частоты (см. setLaneMessagesPerSecond) - свое "ведро" жетонов, которое расходуется вместе с общим.
+ *
+ * Очереди разбирает один поток-диспетчер, а сами запросы к Telegram выполняют несколько потоков-отправителей.
+ * Диспетчер не выдает сообщение в чат, пока не завершилась отправка предыдущего сообщения в этот же чат, поэтому
+ * сообщения каждого чата в пределах полосы приходят в том порядке, в котором были поставлены в очередь. Для этого
+ * сообщения полосы хранятся по чатам, а чаты, в которые можно отправлять, выбираются по кругу. Поэтому выбор
+ * следующего сообщения не зависит от длины очереди, а чат, в который поставлено много сообщений, не задерживает
+ * ответы другим чатам.
+ *
+ * Рассылка не ставит в очередь сразу по сообщению каждому получателю: получатели перебираются отдельным потоком по
+ * мере отправки, и в очереди BROADCAST одновременно ждет не больше MAX_QUEUED_BROADCAST_MESSAGES сообщений. Поэтому
+ * память, занятая рассылкой, не зависит от количества пользователей, а текст сообщения у всей рассылки общий.
+ *
+ * При ошибке 429 отправка всех сообщений приостанавливается на retry_after секунд, а сообщение возвращается в начало
+ * очереди своего чата.
+ *
+ * Отправка обычно происходит уже после завершения трассы, в которой сообщение поставлено в очередь, поэтому каждая
+ * отправка - отдельная трасса "send" со ссылкой на отрезок, поставивший сообщение в очередь
+ * (см. Tracer#startLinkedSpan). Для сообщений рассылки выборка трасс делается заранее
+ * (см. Tracer#startSampledLinkedSpan), чтобы рассылка не держала по незавершенной трассе на каждое сообщение.
+ */
+public class OutboundMessageScheduler {
+
+    /**
+     * Полоса (очередь) сообщений. Полосы перечислены в порядке убывания приоритета.
+     */
+    public enum Lane {
+        INTERACTIVE, // ответы на команды пользователей и inline-запросы
+        BROADCAST // рассылка всем пользователям
+    }
+
+    /**
+     * Отправка одного сообщения - вызов метода execute() бота.
+     */
+    @FunctionalInterface
+    public interface SendAction {
+        void send() throws TelegramApiException;
+    }
+
+    /**
+     * Отправка одного сообщения рассылки в указанный чат - вызов метода execute() бота. Одно и то же действие
+     * выполняется для всех получателей рассылки.
+     */
+    @FunctionalInterface
+    public interface BroadcastAction {
+        void send(long chatId) throws TelegramApiException;
+    }
+
+    // количество потоков, одновременно выполняющих запросы к Telegram
+    private static final int SENDER_THREADS = 8;
+
+    // сколько раз сообщение возвращается в очередь после ошибки 429, прежде чем от его отправки откажемся
+    private static final int MAX_ATTEMPTS = 3;
+
+    // Сколько сообщений рассылки может одновременно ждать в очереди BROADCAST. Следующих получателей поток-поставщик
+    // рассылки берет, только когда очередь освобождается.
+    private static final int MAX_QUEUED_BROADCAST_MESSAGES = 1000;
+
+    // количество последних задержек в очереди, по которым считается p95, для каждой полосы
+    private static final int LATENCY_SAMPLES_CAPACITY = 1024;
+
+    private final double tokensPerNano; // скорость пополнения жетонов
+    private final double burst; // емкость ведра
+    private double tokens;
+    private long lastRefillNanos;
+    private long pausedUntilNanos; // до какого момента отправка приостановлена после ошибки 429
+
+    // очереди полос, EnumMap обходится в порядке объявления полос, то есть по убыванию приоритета
+    private final Map<Lane, LaneQueue> lanes = new EnumMap<>(Lane.class);
+
+    // чаты, сообщение в которые отправляется прямо сейчас (по одному на каждый занятый поток-отправитель)
+    private final Set<Long> chatsInFlight = new HashSet<>();
+
+    private long rateLimitedCount; // сколько раз Telegram ответил ошибкой 429
+
+    private final ExecutorService senders = Executors.newFixedThreadPool(SENDER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "outbound-message-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Поток, перебирающий получателей рассылок и ставящий их сообщения в очередь BROADCAST. Рассылки выполняются по
+    // одной, в порядке вызовов submitBroadcast().
+    private final ExecutorService broadcastFeeder = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "outbound-broadcast-feeder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Конструктор. Запускает поток-диспетчер.
+     *
+     * @param messagesPerSecond сколько сообщений в секунду можно отправлять всем чатам вместе
+     */
+    public OutboundMessageScheduler(double messagesPerSecond) {
+        this.tokensPerNano = messagesPerSecond / 1e9;
+        this.burst = Math.max(1, messagesPerSecond);
+        this.tokens = burst;
+        this.lastRefillNanos = System.nanoTime();
+        this.pausedUntilNanos = lastRefillNanos;
+        for (Lane lane : Lane.values()) {
+            lanes.put(lane, new LaneQueue());
+        }
+
+        Thread dispatcher = new Thread(this::dispatch, "outbound-message-dispatcher");
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+    }
+
+    /**
+     * Ставит сообщение в очередь на отправку. Метод не ждет отправки сообщения.
+     *
+     * @param chatId id чата, в который отправляется сообщение
+     * @param lane полоса, определяющая приоритет сообщения
+     * @param action отправка сообщения
+     */
+    public synchronized void submit(long chatId, Lane lane, SendAction action) {
+        lanes.get(lane).add(new OutboundMessage(chatId, lane, action, Tracer.currentSpan(), System.nanoTime()),
+                chatsInFlight.contains(chatId));
+        notifyAll();
+    }
+
+    /**
+     * Ставит в очередь рассылку: каждому получателю отправляются сообщения actions по порядку. Метод не ждет ни
+     * отправки, ни перебора получателей - они перебираются в отдельном потоке по мере освобождения очереди BROADCAST.
+     * Ошибка перебора получателей (например, БД недоступна) прерывает рассылку оставшимся получателям.
+     *
+     * @param recipients перебор chatId получателей, например userChatIds::forEach
+     * @param actions сообщения, отправляемые каждому получателю
+     */
+    public void submitBroadcast(Consumer<LongConsumer> recipients, List<BroadcastAction> actions) {
+        Span parentSpan = Tracer.currentSpan();
+        broadcastFeeder.execute(() -> feedBroadcast(recipients, actions, parentSpan));
+    }
+
+    /**
+     * Ограничивает частоту отправки сообщений одной полосы, не меняя общего ограничения и ограничений других полос.
+     * Например, в кластерном режиме рассылка каждого узла получает только свою долю лимита Telegram, а ответы на
+     * команды пользователей по-прежнему ограничены только общим лимитом.
+     *
+     * @param lane полоса
+     * @param messagesPerSecond сколько сообщений в секунду можно отправлять из этой полосы
+     */
+    public synchronized void setLaneMessagesPerSecond(Lane lane, double messagesPerSecond) {
+        lanes.get(lane).setMessagesPerSecond(messagesPerSecond, System.nanoTime());
+        notifyAll();
+    }
+
+    /**
+     * Возвращает текст со статистикой работы планировщика: для каждой полосы - сколько сообщений отправлено, сколько
+     * ждет в очереди и сколько они ждали отправки.
+     */
+    public synchronized String getStatistics() {
+        StringBuilder statistics = new StringBuilder("Исходящие сообщения (ошибок 429: " + rateLimitedCount + "):");
+        lanes.forEach((lane, laneQueue) -> statistics.append(String.format(
+                "\n  %s: отправлено %d, в очереди %d, ожидание в очереди: среднее %d мс, p95 %d мс, максимум %d мс",
+                lane, laneQueue.dispatchedCount, laneQueue.size, laneQueue.averageLatencyMillis(),
+                laneQueue.p95LatencyMillis(), TimeUnit.NANOSECONDS.toMillis(laneQueue.maxLatencyNanos))));
+        return statistics.toString();
+    }
+
+    // цикл потока-диспетчера: передает сообщения потокам-отправителям по мере появления жетонов
+    private void dispatch() {
+        while (true) {
+            try {
+                OutboundMessage message = takeNext();
+                senders.execute(() -> deliver(message));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Ждет, пока появятся свободный поток-отправитель, жетон и сообщение, которое можно отправить, и забирает их.
+    // Сообщение можно отправить, если в его чат сейчас ничего не отправляется. Сообщения передаются только свободным
+    // потокам-отправителям, чтобы они не копились в очереди пула потоков, где у них уже нет приоритетов.
+    private synchronized OutboundMessage takeNext() throws InterruptedException {
+        while (true) {
+            if (chatsInFlight.size() >= SENDER_THREADS) {
+                wait(); // будит завершение отправки
+                continue;
+            }
+
+            long now = System.nanoTime();
+            if (now - pausedUntilNanos < 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, pausedUntilNanos - now);
+                continue;
+            }
+
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+            lastRefillNanos = now;
+            if (tokens < 1) {
+                TimeUnit.NANOSECONDS.timedWait(this, (long) Math.ceil((1 - tokens) / tokensPerNano));
+                continue;
+            }
+
+            OutboundMessage message = pollSendable(now);
+            if (message == null) {
+                long laneTokenWaitNanos = nanosUntilLaneToken();
+                if (laneTokenWaitNanos > 0) {
+                    // ждем жетона полосы, но submit() или завершение отправки могут разбудить раньше
+                    TimeUnit.NANOSECONDS.timedWait(this, laneTokenWaitNanos);
+                } else {
+                    wait(); // будит submit() или завершение отправки в какой-то чат
+                }
+                continue;
+            }
+            tokens -= 1;
+            if (message.lane() == Lane.BROADCAST) {
+                notifyAll(); // в очереди рассылки освободилось место - будим поток-поставщик рассылки
+            }
+            return message;
+        }
+    }
+
+    // Забирает из очередей сообщение, которое можно отправить, начиная с полосы с наивысшим приоритетом. Полосы, у
+    // которых кончились собственные жетоны, пропускаются.
+    private OutboundMessage pollSendable(long now) {
+        for (LaneQueue laneQueue : lanes.values()) {
+            if (laneQueue.size == 0 || !laneQueue.hasToken(now)) {
+                continue;
+            }
+            OutboundMessage message = laneQueue.poll(chatsInFlight);
+            if (message != null) {
+                laneQueue.takeToken();
+                laneQueue.recordLatency(now - message.enqueuedNanos());
+                return message;
+            }
+        }
+        return null;
+    }
+
+    // Возвращает, через сколько нс появится жетон у непустой полосы, которой не хватает только собственных жетонов,
+    // или 0, если таких полос нет. Вызывается сразу после pollSendable(), пересчитавшего жетоны полос.
+    private long nanosUntilLaneToken() {
+        long minWaitNanos = 0;
+        for (LaneQueue laneQueue : lanes.values()) {
+            if (laneQueue.size > 0 && laneQueue.isRateLimited() && laneQueue.tokens < 1) {
+                long waitNanos = laneQueue.nanosUntilToken();
+                minWaitNanos = minWaitNanos == 0 ? waitNanos : Math.min(minWaitNanos, waitNanos);
+            }
+        }
+        return minWaitNanos;
+    }
+
+    // Перебирает получателей рассылки в потоке-поставщике и ставит их сообщения в очередь BROADCAST. Перебор -
+    // отдельная трасса "broadcast" со ссылкой на отрезок, запланировавший рассылку, а на нее ссылаются отправки
+    // сообщений рассылки.
+    private void feedBroadcast(Consumer<LongConsumer> recipients, List<BroadcastAction> actions, Span parentSpan) {
+        try (Span span = Tracer.startLinkedSpan("broadcast", parentSpan)) {
+            long[] recipientsCount = new long[1];
+            try {
+                recipients.accept(chatId -> {
+                    recipientsCount[0]++;
+                    for (BroadcastAction action : actions) {
+                        enqueueBroadcast(new OutboundMessage(chatId, Lane.BROADCAST, () -> action.send(chatId), span,
+                                System.nanoTime()));
+                    }
+                });
+            } catch (RuntimeException e) {
+                span.recordError(e);
+                e.printStackTrace();
+            }
+            span.setAttribute("recipients", recipientsCount[0]);
+        }
+    }
+
+    // ставит сообщение рассылки в очередь, дождавшись в ней свободного места
+    private synchronized void enqueueBroadcast(OutboundMessage message) {
+        LaneQueue laneQueue = lanes.get(Lane.BROADCAST);
+        while (laneQueue.size >= MAX_QUEUED_BROADCAST_MESSAGES) {
+            try {
+                wait(); // будит takeNext(), забравший сообщение рассылки из очереди
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Рассылка прервана", e);
+            }
+        }
+        laneQueue.add(message, chatsInFlight.contains(message.chatId()));
+        notifyAll();
+    }
+
+    // отправляет сообщение в потоке-отправителе
+    private void deliver(OutboundMessage message) {
+        boolean retry = false;
+        try (Span span = message.lane() == Lane.BROADCAST
+                ? Tracer.startSampledLinkedSpan("send", message.parentSpan())
+                : Tracer.startLinkedSpan("send", message.parentSpan())) {
+            span.setAttribute("chat.id", message.chatId())
+                    .setAttribute("lane", message.lane().name())
+                    .setAttribute("attempt", message.attempt())
+                    .setAttribute("queue.wait_ms",
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - message.enqueuedNanos()));
+            try {
+                message.action().send();
+            } catch (TelegramApiRequestException e) {
+                Integer retryAfterSeconds = e.getParameters() != null ? e.getParameters().getRetryAfter() : null;
+                if (e.getErrorCode() != null && e.getErrorCode() == 429 && retryAfterSeconds != null) {
+                    retry = message.attempt() < MAX_ATTEMPTS;
+                    pause(retryAfterSeconds);
+                }
+                span.recordError(e);
+                e.printStackTrace();
+            } catch (TelegramApiException | RuntimeException e) {
+                span.recordError(e);
+                e.printStackTrace();
+            }
+        } finally {
+            completed(message, retry);
+        }
+    }
+
+    // приостанавливает отправку всех сообщений после ошибки 429
+    private synchronized void pause(int retryAfterSeconds) {
+        rateLimitedCount++;
+        long pausedUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(retryAfterSeconds);
+        if (pausedUntil - pausedUntilNanos > 0) {
+            pausedUntilNanos = pausedUntil;
+        }
+    }
+
+    // освобождает чат после отправки сообщения, при необходимости возвращая сообщение в начало очереди чата
+    private synchronized void completed(OutboundMessage message, boolean retry) {
+        if (retry) {
+            lanes.get(message.lane()).addFirst(message.nextAttempt());
+        }
+        chatsInFlight.remove(message.chatId());
+        for (LaneQueue laneQueue : lanes.values()) {
+            laneQueue.chatReleased(message.chatId());
+        }
+        notifyAll();
+    }
+
+    /**
+     * Сообщение, ожидающее отправки.
+     *
+     * @param chatId id чата
+     * @param lane полоса сообщения
+     * @param action отправка сообщения
+     * @param parentSpan отрезок трассы, в котором сообщение поставлено в очередь (или null)
+     * @param enqueuedNanos момент постановки в очередь (System.nanoTime())
+     * @param attempt номер попытки отправки, начиная с 1
+     */
+    private record OutboundMessage(long chatId, Lane lane, SendAction action, Span parentSpan, long enqueuedNanos,
+                                   int attempt) {
+
+        OutboundMessage(long chatId, Lane lane, SendAction action, Span parentSpan, long enqueuedNanos) {
+            this(chatId, lane, action, parentSpan, enqueuedNanos, 1);
+        }
+
+        // то же сообщение для следующей попытки отправки
+        OutboundMessage nextAttempt() {
+            return new OutboundMessage(chatId, lane, action, parentSpan, enqueuedNanos, attempt + 1);
+        }
+    }
+
+    /**
+     * Очередь одной полосы, ее собственное ограничение частоты и статистика времени ожидания в ней. Все обращения -
+     * под блокировкой планировщика.
+     *
+     * Ожидающие сообщения хранятся по чатам, в порядке постановки в очередь. Каждый чат с ожидающими сообщениями либо
+     * стоит в очереди готовых чатов readyChats, либо в него сейчас идет отправка (тогда он встанет в конец readyChats,
+     * когда отправка завершится). Чат, занятый отправкой из другой полосы, может оставаться в readyChats - он
+     * убирается оттуда, когда до него дойдет очередь.
+     */
+    private static class LaneQueue {
+
+        private final Map<Long, ChatQueue> chatQueues = new HashMap<>();
+        private final ArrayDeque<Long> readyChats = new ArrayDeque<>();
+        private int size; // сколько сообщений ждет в очереди полосы
+
+        // собственное "ведро" жетонов полосы; 0 жетонов в секунду - у полосы нет собственного ограничения
+        private double tokensPerNano;
+        private double burst;
+        private double tokens;
+        private long lastRefillNanos;
+
+        private long dispatchedCount; // сколько сообщений передано на отправку
+        private long totalLatencyNanos;
+        private long maxLatencyNanos;
+
+        // последние задержки в очереди (кольцевой буфер) для расчета p95
+        private final long[] latencySamplesNanos = new long[LATENCY_SAMPLES_CAPACITY];
+
+        // ставит сообщение в конец очереди его чата; chatInFlight - в чат сейчас идет отправка
+        void add(OutboundMessage message, boolean chatInFlight) {
+            ChatQueue chatQueue = chatQueues.computeIfAbsent(message.chatId(), chatId -> new ChatQueue());
+            chatQueue.messages.addLast(message);
+            size++;
+            if (!chatInFlight) {
+                markReady(message.chatId(), chatQueue);
+            }
+        }
+
+        // возвращает сообщение в начало очереди его чата; вызывается, пока в чат идет отправка
+        void addFirst(OutboundMessage message) {
+            chatQueues.computeIfAbsent(message.chatId(), chatId -> new ChatQueue()).messages.addFirst(message);
+            size++;
+        }
+
+        // Забирает первое сообщение первого готового чата, в который сейчас ничего не отправляется, и отмечает чат
+        // занятым в chatsInFlight. Возвращает null, если таких чатов нет.
+        OutboundMessage poll(Set<Long> chatsInFlight) {
+            Long chatId;
+            while ((chatId = readyChats.pollFirst()) != null) {
+                ChatQueue chatQueue = chatQueues.get(chatId);
+                chatQueue.ready = false;
+                if (!chatsInFlight.add(chatId)) {
+                    continue; // чат занят отправкой из другой полосы, вернется в readyChats при ее завершении
+                }
+                OutboundMessage message = chatQueue.messages.pollFirst();
+                if (chatQueue.messages.isEmpty()) {
+                    chatQueues.remove(chatId);
+                }
+                size--;
+                return message;
+            }
+            return null;
+        }
+
+        // ставит чат в конец readyChats после завершения отправки в него, если у него есть ожидающие сообщения
+        void chatReleased(long chatId) {
+            ChatQueue chatQueue = chatQueues.get(chatId);
+            if (chatQueue != null) {
+                markReady(chatId, chatQueue);
+            }
+        }
+
+        private void markReady(long chatId, ChatQueue chatQueue) {
+            if (!chatQueue.ready) {
+                chatQueue.ready = true;
+                readyChats.addLast(chatId);
+            }
+        }
+
+        void setMessagesPerSecond(double messagesPerSecond, long now) {
+            boolean wasRateLimited = isRateLimited();
+            hasToken(now); // пересчитываем жетоны по прежней скорости
+            tokensPerNano = messagesPerSecond / 1e9;
+            burst = Math.max(1, messagesPerSecond);
+            tokens = wasRateLimited ? Math.min(tokens, burst) : burst; // первое ограничение - с полным ведром
+            lastRefillNanos = now;
+        }
+
+        boolean isRateLimited() {
+            return tokensPerNano > 0;
+        }
+
+        // пополняет жетоны полосы на момент now и возвращает true, если из полосы можно отправить сообщение
+        boolean hasToken(long now) {
+            if (!isRateLimited()) {
+                return true;
+            }
+            tokens = Math.min(burst, tokens + (now - lastRefillNanos) * tokensPerNano);
+            lastRefillNanos = now;
+            return tokens >= 1;
+        }
+
+        void takeToken() {
+            if (isRateLimited()) {
+                tokens -= 1;
+            }
+        }
+
+        long nanosUntilToken() {
+            return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+        }
+
+        // добавляет время ожидания в очереди сообщения, переданного на отправку
+        void recordLatency(long latencyNanos) {
+            latencySamplesNanos[(int) (dispatchedCount % LATENCY_SAMPLES_CAPACITY)] = latencyNanos;
+            dispatchedCount++;
+            totalLatencyNanos += latencyNanos;
+            maxLatencyNanos = Math.max(maxLatencyNanos, latencyNanos);
+        }
+
+        long averageLatencyMillis() {
+            return dispatchedCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos / dispatchedCount);
+        }
+
+        // 95-й перцентиль времени ожидания последних LATENCY_SAMPLES_CAPACITY сообщений
+        long p95LatencyMillis() {
+            int samplesCount = (int) Math.min(dispatchedCount, LATENCY_SAMPLES_CAPACITY);
+            if (samplesCount == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencySamplesNanos, samplesCount);
+            Arrays.sort(sorted);
+            return TimeUnit.NANOSECONDS.toMillis(sorted[(int) Math.ceil(0.95 * samplesCount) - 1]);
+        }
+    }
+
+    /**
+     * Ожидающие сообщения одного чата в одной полосе.
+     */
+    private static class ChatQueue {
+
+        private final ArrayDeque<OutboundMessage> messages = new ArrayDeque<>();
+        private boolean ready; // чат стоит в очереди готовых чатов полосы
+    }
+}
@@ -0,0 +1,41 @@
+package com.mycompany;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Замеряет время старта бота и выводит его в консоль. Это и есть бенчмарк времени запуска: сравнивая выведенные
+ * значения для разных режимов запуска (обычный, с AppCDS-архивом, с Spring AOT), можно оценить выигрыш от каждого.
+ * Время отсчитывается от момента запуска JVM.
+ */
+public final class StartupTimeMeter {
+
+    // флаг того, что первый update уже обработан (время до него выводим только один раз)
+    private static final AtomicBoolean firstUpdateHandled = new AtomicBoolean();
+
+    /**
+     * Запрещаем создавать экземпляры класса, так как он состоит только из статичных методов.
+     */
+    private StartupTimeMeter() {}
+
+    /**
+     * Выводит время от запуска JVM до готовности контекста Spring.
+     */
+    public static void contextStarted() {
+        System.out.println("Контекст Spring поднят за " + getJvmUptimeMillis() + " мс от запуска JVM");
+    }
+
+    /**
+     * Выводит время от запуска JVM до обработки первого update. Все последующие вызовы ничего не делают.
+     */
+    public static void firstUpdateHandled() {
+        if (firstUpdateHandled.compareAndSet(false, true)) {
+            System.out.println("Первый update обработан через " + getJvmUptimeMillis() + " мс от запуска JVM");
+        }
+    }
+
+    // возвращает время в мс, прошедшее с момента запуска JVM
+    private static long getJvmUptimeMillis() {
+        return ManagementFactory.getRuntimeMXBean().getUptime();
+    }
+}
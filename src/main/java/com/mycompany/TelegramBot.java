@@ -1,21 +1,38 @@
 package com.mycompany;
 
+import com.mycompany.cluster.ClusterNode;
 import com.mycompany.currency.CurrencyQuotes;
+import com.mycompany.currency.DailyQuote;
+import com.mycompany.currency.MoexCurrencyPair;
+import com.mycompany.currency.MoexHistory;
+import com.mycompany.currency.QuotesSnapshot;
+import com.mycompany.my.ConcurrentLongHashSet;
 import com.mycompany.my.MyTimer;
+import com.mycompany.trace.Span;
+import com.mycompany.trace.Tracer;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.telegram.telegrambots.bots.TelegramLongPollingBot;
+import org.telegram.telegrambots.meta.api.methods.AnswerInlineQuery;
+import org.telegram.telegrambots.meta.api.methods.send.SendDocument;
 import org.telegram.telegrambots.meta.api.methods.send.SendMessage;
+import org.telegram.telegrambots.meta.api.objects.InputFile;
 import org.telegram.telegrambots.meta.api.objects.Update;
-import org.telegram.telegrambots.meta.exceptions.TelegramApiException;
+import org.telegram.telegrambots.meta.api.objects.inlinequery.InlineQuery;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
 import java.time.LocalTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
-import java.util.Properties;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -24,51 +41,168 @@ import java.util.concurrent.TimeUnit;
 @Component
 public class TelegramBot extends TelegramLongPollingBot {
 
-    // читаем properties-файл с конфигурационными параметрами бота
-    static Properties botProperties;
-    static {
-        // try (InputStream resourceStream = Thread.currentThread().getContextClassLoader().getResourceAsStream("application.properties")) {
-        try (InputStream resourceStream = TelegramBot.class.getClassLoader().getResourceAsStream("application.properties")) {
-            botProperties = new Properties();
-            botProperties.load(resourceStream);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-    }
+    // Конфигурационные параметры бота из application.properties. Их внедряет Spring при создании бина, поэтому
+    // при загрузке класса никакого чтения файлов больше не происходит.
+    private final String botUsername;
+    private final String botToken;
 
     // котировки валютных пар
-    private CurrencyQuotes quotes = new CurrencyQuotes();
+    private CurrencyQuotes quotes;
+
+    // индекс для ответов на inline-запросы, перестраивается при обновлении снимка котировок
+    private volatile InlineQuotesIndex inlineQuotesIndex;
+
+    // ограничитель частоты сообщений от каждого чата
+    private final ChatRateLimiter rateLimiter;
+
+    // планировщик исходящих сообщений, через него проходят все отправки сообщений пользователям
+    private final OutboundMessageScheduler outboundScheduler;
+    private final int sendRatePerSecond;
+
+    // узел кластера в кластерном режиме (см. пакет com.mycompany.cluster), null - бот работает на одном узле
+    private volatile ClusterNode clusterNode;
+
+    // Максимальное количество торговых дней, историю за которые отправляем текстом. Историю за большее количество дней
+    // отправляем CSV-файлом, так как длина сообщения в Telegram ограничена 4096 символами.
+    private static final int MAX_HISTORY_MESSAGE_LINES = 60;
+
+    // Если к моменту ежедневной рассылки котировок еще нет (узел кластера не получил снимок от лидера, а файла снимка
+    // нет) или есть только устаревшие котировки, восстановленные из файла, рассылка откладывается до их обновления:
+    // на NO_SNAPSHOT_RETRY_MINUTES минут, но не больше NO_SNAPSHOT_MAX_RETRIES раз.
+    private static final long NO_SNAPSHOT_RETRY_MINUTES = 1;
+    private static final int NO_SNAPSHOT_MAX_RETRIES = 30;
+
+    // таймер ежедневной рассылки, на нем же планируются ее повторы
+    private MyTimer dailyTimer;
+
+    // момент первого запуска ежедневной рассылки и ее период в мс - по ним вычисляется номер рассылки
+    private long broadcastFirstRunMillis;
+    private long broadcastPeriodMillis;
 
     // Коллекция для хранения множества chatId пользователей бота
-    private Set<Long> userChatIds = ConcurrentHashMap.newKeySet(); // так мы получаем потокобезопасный HashSet
+    // (потокобезопасное множество примитивных long, см. ConcurrentLongHashSet)
+    private final ConcurrentLongHashSet userChatIds = new ConcurrentLongHashSet();
+
+    /**
+     * Конструктор. Вызывается Spring-ом при создании бина.
+     *
+     * @param botUsername username бота (свойство bot.username)
+     * @param botToken токен бота (свойство bot.token)
+     * @param moexPollPeriod период опроса Мосбиржи во время торгов (свойство quotes.moex.poll-period, по умолчанию 5 мин)
+     * @param bybitPollPeriod период опроса биржи Bybit (свойство quotes.bybit.poll-period, по умолчанию 1 мин)
+     * @param snapshotFile файл с последним снимком котировок для быстрого перезапуска (свойство quotes.snapshot.file,
+     *                     по умолчанию cache/quotes-snapshot.bin)
+     * @param rateLimitBurst сколько сообщений подряд можно отправить боту из одного чата (свойство
+     *                       chat.rate-limit.burst, по умолчанию 5)
+     * @param rateLimitPerMinute сколько сообщений в минуту можно постоянно отправлять боту из одного чата (свойство
+     *                           chat.rate-limit.per-minute, по умолчанию 6)
+     * @param sendRatePerSecond сколько сообщений в секунду бот отправляет всем пользователям вместе (свойство
+     *                          outbound.messages-per-second, по умолчанию 30 - ограничение Telegram)
+     */
+    public TelegramBot(@Value("${bot.username}") String botUsername,
+                       @Value("${bot.token}") String botToken,
+                       @Value("${quotes.moex.poll-period:5m}") Duration moexPollPeriod,
+                       @Value("${quotes.bybit.poll-period:1m}") Duration bybitPollPeriod,
+                       @Value("${quotes.snapshot.file:cache/quotes-snapshot.bin}") String snapshotFile,
+                       @Value("${chat.rate-limit.burst:5}") int rateLimitBurst,
+                       @Value("${chat.rate-limit.per-minute:6}") int rateLimitPerMinute,
+                       @Value("${outbound.messages-per-second:30}") int sendRatePerSecond) {
+        this.botUsername = botUsername;
+        this.botToken = botToken;
+        this.quotes = new CurrencyQuotes(moexPollPeriod, bybitPollPeriod, Path.of(snapshotFile));
+        this.rateLimiter = new ChatRateLimiter(rateLimitBurst, rateLimitPerMinute);
+        this.outboundScheduler = new OutboundMessageScheduler(sendRatePerSecond);
+        this.sendRatePerSecond = sendRatePerSecond;
+    }
+
+    /**
+     * Включает кластерный режим: пользователи хранятся в общей БД кластера, котировки запрашивает только узел-лидер,
+     * а ежедневную рассылку этот узел делает только своей доле пользователей.
+     *
+     * @param clusterNode узел кластера
+     * @param leadershipListener получатель уведомлений о том, что узел стал или перестал быть лидером
+     * @throws SQLException если не удалось подключиться к БД кластера
+     */
+    public void joinCluster(ClusterNode clusterNode, ClusterNode.LeadershipListener leadershipListener)
+            throws SQLException {
+        this.clusterNode = clusterNode;
+        clusterNode.start(quotes, leadershipListener);
+    }
 
     // возвращает username бота
     @Override
     public String getBotUsername() {
-        return botProperties.getProperty("bot.username"); // этот параметр можно получить у телеграм-бота @BotFather https://t.me/BotFather
+        return botUsername; // этот параметр можно получить у телеграм-бота @BotFather https://t.me/BotFather
     }
 
     // возвращает токен бота
     @Override
     public String getBotToken() {
-        return botProperties.getProperty("bot.token"); // этот параметр можно получить у телеграм-бота @BotFather https://t.me/BotFather
+        return botToken; // этот параметр можно получить у телеграм-бота @BotFather https://t.me/BotFather
     }
 
     // вызывается автоматически всякий раз при получении сообщения (update) от юзера
     @Override
     public void onUpdateReceived(Update update) {
+        // вся обработка update - одна трасса, см. пакет com.mycompany.trace
+        try (Span span = Tracer.startSpan("onUpdateReceived")) {
+            try {
+                handleUpdate(update, span);
+            } catch (RuntimeException e) {
+                span.recordError(e);
+                throw e;
+            }
+        }
+    }
+
+    // обрабатывает update, span - корневой отрезок трассы его обработки
+    private void handleUpdate(Update update, Span span) {
+        // inline-запрос: пользователь набрал в любом чате "@имя_бота <код валюты>"
+        if (update.hasInlineQuery()) {
+            span.setAttribute("update.type", "inline_query");
+            answerInlineQuery(update.getInlineQuery());
+            return;
+        }
+
         // Проверяем, содержит ли update сообщение и содержится ли в сообщении текст
         if (update.hasMessage() && update.getMessage().hasText()) {
             String text = update.getMessage().getText(); // получаем текст сообщения
             long userChatId = update.getMessage().getChatId();
+            span.setAttribute("update.type", "message").setAttribute("chat.id", userChatId);
+
+            // первое слово сообщения - команда, остальные - ее аргументы (они есть только у команды /history)
+            String[] command = text.trim().split("\\s+");
+            span.setAttribute("command", command[0]);
+
+            // Антифлуд: если из чата приходит слишком много сообщений, лишние не обрабатываем. Вместо ответа на
+            // каждое из них один раз отправляем предупреждение, остальные молча отбрасываем. Команду /exit не
+            // ограничиваем: отписка от рассылки не должна теряться, даже если пользователь перед этим флудил.
+            if (!command[0].equals("/exit")) {
+                switch (rateLimiter.tryAcquire(userChatId)) {
+                    case THROTTLED_NOTIFY -> {
+                        send(userChatId, "Слишком много запросов, попробуйте через минуту");
+                        return;
+                    }
+                    case THROTTLED_SILENT -> {
+                        span.setAttribute("throttled", true);
+                        return;
+                    }
+                }
+            }
 
             // обработка нажатий пунктов меню
-            switch (text) {
+            switch (command[0]) {
                 case "/start" -> {
                     addUser(userChatId);
 
-                    // отправляем сообщения с котировками фиатных валют и крипты пользователю
-                    quotes.getRelevantQuotes();
+                    // Отправляем сообщения с котировками фиатных валют и крипты пользователю. Если биржи недоступны,
+                    // отвечаем по последнему снимку, а если котировок еще нет - сообщаем об этом.
+                    try {
+                        quotes.getRelevantQuotes();
+                    } catch (RuntimeException e) {
+                        span.recordError(e);
+                        e.printStackTrace();
+                    }
                     send(userChatId, quotes.getFiatCurrenciesQuotesMessage());
                     send(userChatId, quotes.getCryptocurrenciesQuotesMessage());
                 }
@@ -76,18 +210,45 @@ public class TelegramBot extends TelegramLongPollingBot {
                     send(userChatId, "Бот остановлен !");
                     deleteUser(userChatId);
                 }
+                case "/history" -> sendHistory(userChatId, command);
             }
+
+            StartupTimeMeter.firstUpdateHandled();
         }
     }
 
+    /**
+     * Возвращает текст со статистикой работы антифлуда.
+     */
+    public String getRateLimiterStatistics() {
+        return rateLimiter.getStatistics();
+    }
+
+    /**
+     * Возвращает текст со статистикой очередей исходящих сообщений.
+     */
+    public String getOutboundStatistics() {
+        return outboundScheduler.getStatistics();
+    }
+
     // добавляет chatId нового юзера
     public void addUser(long userChatId) {
-        userChatIds.add(userChatId);
+        ClusterNode node = clusterNode;
+        if (node != null) {
+            node.addSubscriber(userChatId);
+        } else {
+            userChatIds.add(userChatId);
+        }
     }
 
     // удаляет chatId юзера
     public void deleteUser(long userChatId) {
-        userChatIds.remove(userChatId);
+        ClusterNode node = clusterNode;
+        if (node != null) {
+            node.removeSubscriber(userChatId);
+        } else {
+            userChatIds.remove(userChatId);
+        }
     }
 
     /**
@@ -114,49 +275,183 @@ public class TelegramBot extends TelegramLongPollingBot {
             startTime = startTime.plusDays(1);
         }
 
-        new MyTimer().schedule(sendQuotesInfoMessageDailyTask, startTime, period, unit);
+        broadcastFirstRunMillis = startTime.toInstant().toEpochMilli();
+        broadcastPeriodMillis = unit.toMillis(period);
+        dailyTimer = new MyTimer();
+        dailyTimer.schedule(sendQuotesInfoMessageDailyTask, startTime, period, unit);
     }
 
     // Задача (task) для выполнения по таймеру MyTimer.
     // Суть задачи: получаем котировки фиатных валют и крипты и рассылаем сообщение с ними всем юзерам
-    private MyTimer.MyTimerTask sendQuotesInfoMessageDailyTask = () -> {
-        quotes.getRelevantQuotes();
-        sendToAll(quotes.getFiatCurrenciesQuotesMessage());
-        sendToAll(quotes.getCryptocurrenciesQuotesMessage());
-    };
+    private MyTimer.MyTimerTask sendQuotesInfoMessageDailyTask = () -> sendQuotesToAllUsers(0);
+
+    // Получает котировки и рассылает их всем юзерам. Если котировок еще нет или они восстановлены из файла и еще не
+    // обновлены, откладывает рассылку (retry - номер повтора). Исключения не выпускает: исключение в задаче MyTimer
+    // остановило бы таймер и все следующие рассылки.
+    private void sendQuotesToAllUsers(int retry) {
+        try (Span span = Tracer.startSpan("sendQuotesInfoMessageDailyTask")) {
+            span.setAttribute("retry", retry);
+            try {
+                quotes.getRelevantQuotes();
+                if (!quotes.hasRefreshedSnapshot()) {
+                    span.setAttribute("no_snapshot", true);
+                    if (retry < NO_SNAPSHOT_MAX_RETRIES) {
+                        dailyTimer.schedule(() -> sendQuotesToAllUsers(retry + 1), NO_SNAPSHOT_RETRY_MINUTES,
+                                TimeUnit.MINUTES);
+                    } else {
+                        System.out.println("Ежедневная рассылка пропущена: актуальных котировок нет");
+                    }
+                    return;
+                }
+                sendToAll(List.of(quotes.getFiatCurrenciesQuotesMessage(), quotes.getCryptocurrenciesQuotesMessage()));
+            } catch (RuntimeException e) {
+                span.recordError(e);
+                e.printStackTrace();
+            }
+        }
+    }
 
     /**
-     * Отправляет сообщение всем зарегистрированным пользователям.
-     * Если к моменту выполнения этого метода список пользователям будет пустой, цикл просто не запустится и все,
-     * исключений никаких не будет, т.к. foreach при компиляции заменяется на while(iterator.hasNext()) { }
+     * Ставит в очередь на отправку сообщения всем зарегистрированным пользователям. Сообщения рассылки отправляются
+     * с низким приоритетом, после ответов на команды пользователей (см. OutboundMessageScheduler).
+     * Пользователи перебираются по мере отправки, а не все сразу, по снимку множества userChatIds, поэтому добавление и
+     * удаление пользователей во время рассылки не блокируется. Ошибка отправки одному пользователю не прерывает
+     * рассылку остальным.
      *
-     * @param text текст сообщения
+     * В кластерном режиме рассылка идет только пользователям этого узла: пользователи делятся между узлами, записанными
+     * в состав этой рассылки в БД (см. ClusterNode#getBroadcastMembership). Все узлы рассылают одновременно, поэтому
+     * лимит Telegram на отправку сообщений делится между узлами состава поровну.
+     *
+     * @param texts тексты сообщений, каждому пользователю они отправляются в этом порядке
      */
-    private void sendToAll(String text) {
-        SendMessage sendMessage = new SendMessage();
+    private void sendToAll(List<String> texts) {
+        List<OutboundMessageScheduler.BroadcastAction> actions = texts.stream()
+                .<OutboundMessageScheduler.BroadcastAction>map(text ->
+                        chatId -> execute(new SendMessage("" + chatId, text)))
+                .toList();
+
+        ClusterNode node = clusterNode;
+        if (node != null) {
+            long epoch = broadcastEpoch();
+            // состав рассылки читается уже в потоке рассылки, так как узлу, не являющемуся лидером, нужно его ждать
+            outboundScheduler.submitBroadcast(action -> {
+                List<String> membership = node.getBroadcastMembership(epoch);
+                // своя доля лимита только у рассылки: ответы на команды на узле-лидере ограничены лишь общим лимитом
+                outboundScheduler.setLaneMessagesPerSecond(OutboundMessageScheduler.Lane.BROADCAST,
+                        (double) sendRatePerSecond / Math.max(1, membership.size()));
+                node.forEachOwnSubscriber(membership, action);
+            }, actions);
+        } else {
+            outboundScheduler.submitBroadcast(userChatIds::forEach, actions);
+        }
+    }
+
+    // Возвращает номер рассылки: количество периодов рассылки от начала эпохи до ее запланированного момента. Узлы
+    // кластера запускают рассылку в одно и то же время суток (с точностью до синхронизации часов), даже если сами
+    // запущены в разные дни, поэтому номер одинаков на всех узлах - и для отложенных повторов рассылки тоже.
+    private long broadcastEpoch() {
+        long offset = Math.floorMod(broadcastFirstRunMillis, broadcastPeriodMillis);
+        return Math.floorDiv(System.currentTimeMillis() - offset + broadcastPeriodMillis / 2, broadcastPeriodMillis);
+    }
+
+    /**
+     * Обрабатывает команду "/history <валютная пара> <начальная дата> <конечная дата>", например
+     * "/history USD_RUB 2023-01-01 2023-06-30": отправляет пользователю итоги торгов валютной пары на Мосбирже по дням.
+     * Короткую историю отправляет текстом, длинную - CSV-файлом.
+     *
+     * @param userChatId id чата юзера
+     * @param command команда, разбитая на слова
+     */
+    private void sendHistory(long userChatId, String[] command) {
+        MoexCurrencyPair currencyPair;
+        LocalDate fromDate;
+        LocalDate tillDate;
         try {
-            for (long chatId : userChatIds) {
-                sendMessage.setChatId(chatId);
-                sendMessage.setText(text);
-                execute(sendMessage); // отправляем сообщение
-            }
+            currencyPair = MoexCurrencyPair.valueOf(command[1].toUpperCase());
+            fromDate = LocalDate.parse(command[2]);
+            tillDate = LocalDate.parse(command[3]);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | DateTimeParseException e) {
+            send(userChatId, "Формат команды: /history <валютная пара> <начальная дата> <конечная дата>\n" +
+                    "Например: /history USD_RUB 2023-01-01 2023-06-30\n" +
+                    "Доступные валютные пары: " + Arrays.toString(MoexCurrencyPair.values()));
+            return;
+        }
 
-        } catch (TelegramApiException e) {
+        // Диапазон проверяем до загрузки: исключения при загрузке (в том числе IllegalArgumentException при разборе
+        // ответа биржи) - это ошибки биржи, а не пользователя.
+        try {
+            MoexHistory.checkRange(fromDate, tillDate);
+        } catch (IllegalArgumentException e) {
+            send(userChatId, "Некорректный диапазон дат: " + e.getMessage());
+            return;
+        }
+
+        List<DailyQuote> dailyQuotes;
+        try {
+            dailyQuotes = MoexHistory.getDailyQuotes(currencyPair, fromDate, tillDate);
+        } catch (RuntimeException e) {
             e.printStackTrace();
+            send(userChatId, "Не удалось получить историю торгов с Мосбиржи, попробуйте позже");
+            return;
+        }
+
+        if (dailyQuotes.isEmpty()) {
+            send(userChatId, "За указанный период торгов не было");
+        } else if (dailyQuotes.size() <= MAX_HISTORY_MESSAGE_LINES) {
+            send(userChatId, MoexHistory.formatAsText(currencyPair, dailyQuotes));
+        } else {
+            byte[] csv = MoexHistory.formatAsCsv(dailyQuotes).getBytes(StandardCharsets.UTF_8);
+            String fileName = currencyPair + "_" + dailyQuotes.get(0).tradeDate() + "_"
+                    + dailyQuotes.get(dailyQuotes.size() - 1).tradeDate() + ".csv";
+            // поток с содержимым файла создается при каждой попытке отправки, так как он читается только один раз
+            outboundScheduler.submit(userChatId, OutboundMessageScheduler.Lane.INTERACTIVE, () -> execute(
+                    new SendDocument("" + userChatId, new InputFile(new ByteArrayInputStream(csv), fileName))));
         }
     }
 
     /**
-     * Отправляет сообщение одному пользователю.
+     * Отвечает на inline-запрос готовыми результатами из индекса по текущему снимку котировок.
+     * В ответе указывается cache_time, равный времени, оставшемуся до устаревания котировок, - в течение этого времени
+     * серверы Telegram сами отвечают на такие же запросы, и они не доходят до бота.
+     *
+     * На inline-запрос нужно ответить за несколько секунд, поэтому котировки у бирж здесь не запрашиваются: если снимок
+     * устарел, его обновление запускается в фоне, а ответ дается по текущему снимку. Ответ отправляется с приоритетом
+     * ответов на команды (полоса INTERACTIVE), то есть раньше сообщений рассылки.
+     */
+    private void answerInlineQuery(InlineQuery inlineQuery) {
+        quotes.refreshInBackground();
+        QuotesSnapshot snapshot = quotes.getSnapshot();
+        if (snapshot == null) {
+            return;
+        }
+
+        InlineQuotesIndex index = inlineQuotesIndex;
+        if (index == null || index.getSnapshotVersion() != snapshot.version()) {
+            index = new InlineQuotesIndex(snapshot);
+            inlineQuotesIndex = index;
+        }
+
+        long secondsUntilStale = Duration.between(Instant.now(), snapshot.relevantUntil()).getSeconds();
+        AnswerInlineQuery answer = new AnswerInlineQuery();
+        answer.setInlineQueryId(inlineQuery.getId());
+        answer.setResults(index.find(inlineQuery.getQuery()));
+        answer.setCacheTime((int) Math.max(0, Math.min(secondsUntilStale, Integer.MAX_VALUE)));
+        answer.setIsPersonal(false); // ответ одинаковый для всех пользователей, Telegram может отдавать его всем
+        // Ответ расходует общий лимит отправки бота, как и сообщения, поэтому тоже идет через планировщик. Чата у
+        // inline-запроса нет - ответы упорядочиваются по id пользователя (он совпадает с id личного чата с ботом).
+        outboundScheduler.submit(inlineQuery.getFrom().getId(), OutboundMessageScheduler.Lane.INTERACTIVE,
+                () -> execute(answer));
+    }
+
+    /**
+     * Ставит в очередь на отправку ответ одному пользователю. Ответы на команды отправляются раньше сообщений
+     * рассылки и в том порядке, в котором поставлены в очередь (см. OutboundMessageScheduler).
      *
      * @param userChatId id чата юзера, которому будет отправлено сообщение
      * @param text текст сообщения
      */
     private void send(long userChatId, String text) {
-        try {
-            execute(new SendMessage("" + userChatId, text));
-        } catch (TelegramApiException e) {
-            e.printStackTrace();
-        }
+        outboundScheduler.submit(userChatId, OutboundMessageScheduler.Lane.INTERACTIVE,
+                () -> execute(new SendMessage("" + userChatId, text)));
     }
 }
\ No newline at end of file
@@ -0,0 +1,309 @@
+package com.mycompany.cluster;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Общая БД узлов кластера. Хранит:
+ * - cluster_nodes - узлы и время их последнего сигнала "я жив" (heartbeat);
+ * - leader_lease - аренду роли лидера: узел, который ее держит, и момент, до которого она действует;
+ * - quotes_snapshot - последний снимок котировок, опубликованный лидером (в формате QuotesSnapshotFile);
+ * - subscribers - chatId пользователей бота и хэш каждого chatId на кольце консистентного хэширования (ring_hash,
+ *   см. ConsistentHashRing). По индексу на ring_hash каждый узел выбирает только своих пользователей;
+ * - broadcast_membership - состав рассылок: для каждой рассылки (epoch) - список узлов, между которыми делятся
+ *   пользователи. Его записывает первый начавший рассылку узел (обычно лидер), и все узлы делят пользователей по
+ *   одному и тому же списку, даже если их собственные списки живых узлов в этот момент различаются.
+ *
+ * Запросы написаны на общем подмножестве SQL, которое понимают и PostgreSQL, и H2. Вместо специфичных для СУБД
+ * upsert и блокировок используются условные UPDATE: например, аренда лидера захватывается запросом
+ * "UPDATE ... WHERE holder = я OR expires_at < сейчас", и при одновременных попытках нескольких узлов изменить строку
+ * сможет только один. Время - в мс от начала эпохи по часам узлов, поэтому часы узлов должны быть синхронизированы
+ * (NTP) с точностью намного лучше длительности аренды.
+ *
+ * Соединения с БД берутся из пула (DataSource) на каждую операцию и сразу возвращаются в него, поэтому ни одна
+ * операция не открывает новое соединение с БД, а ожидание места в очереди рассылки не держит соединение.
+ */
+public class ClusterDatabase {
+
+    // имя аренды лидера в таблице leader_lease
+    private static final String LEADER_LEASE_NAME = "leader";
+
+    // id единственной строки таблицы quotes_snapshot
+    private static final int SNAPSHOT_ROW_ID = 1;
+
+    // сколько пользователей читается из БД одним запросом при рассылке
+    private static final int SUBSCRIBERS_PAGE_SIZE = 10_000;
+
+    // разделитель id узлов в столбце node_ids таблицы broadcast_membership
+    private static final String NODE_IDS_SEPARATOR = "\n";
+
+    // SQLSTATE класса "нарушение ограничения целостности" (например, вставка дубликата первичного ключа)
+    private static final String INTEGRITY_CONSTRAINT_VIOLATION = "23";
+
+    private final DataSource dataSource;
+
+    /**
+     * Конструктор
+     *
+     * @param dataSource пул соединений с БД, например jdbc:postgresql://localhost/bot или
+     *                   jdbc:h2:file:./cluster-db;AUTO_SERVER=TRUE
+     */
+    public ClusterDatabase(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * Создает таблицы, если их еще нет.
+     */
+    public void createTables() throws SQLException {
+        try (Connection connection = connect(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS cluster_nodes (" +
+                    "node_id VARCHAR(200) PRIMARY KEY, heartbeat_at BIGINT NOT NULL)");
+            statement.execute("CREATE TABLE IF NOT EXISTS leader_lease (" +
+                    "lease_name VARCHAR(50) PRIMARY KEY, holder VARCHAR(200) NOT NULL, expires_at BIGINT NOT NULL)");
+            statement.execute("CREATE TABLE IF NOT EXISTS quotes_snapshot (" +
+                    "id INT PRIMARY KEY, version BIGINT NOT NULL, data BYTEA NOT NULL)");
+            statement.execute("CREATE TABLE IF NOT EXISTS subscribers (" +
+                    "chat_id BIGINT PRIMARY KEY, ring_hash BIGINT NOT NULL)");
+            statement.execute("CREATE INDEX IF NOT EXISTS subscribers_ring_hash ON subscribers (ring_hash)");
+            statement.execute("CREATE TABLE IF NOT EXISTS broadcast_membership (" +
+                    "epoch BIGINT PRIMARY KEY, node_ids VARCHAR(10000) NOT NULL, created_at BIGINT NOT NULL)");
+        }
+    }
+
+    /**
+     * Записывает сигнал "я жив" узла.
+     */
+    public void heartbeat(String nodeId, long now) throws SQLException {
+        try (Connection connection = connect()) {
+            if (update(connection, "UPDATE cluster_nodes SET heartbeat_at = ? WHERE node_id = ?", now, nodeId) == 0) {
+                insertIfAbsent(connection, "INSERT INTO cluster_nodes (node_id, heartbeat_at) VALUES (?, ?)",
+                        nodeId, now);
+            }
+        }
+    }
+
+    /**
+     * Возвращает id узлов, сигнал "я жив" от которых был не раньше указанного момента, отсортированные по id.
+     */
+    public List<String> getLiveNodes(long heartbeatSince) throws SQLException {
+        try (Connection connection = connect(); PreparedStatement statement = connection.prepareStatement(
+                "SELECT node_id FROM cluster_nodes WHERE heartbeat_at >= ? ORDER BY node_id")) {
+            statement.setLong(1, heartbeatSince);
+            List<String> nodeIds = new ArrayList<>();
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    nodeIds.add(resultSet.getString(1));
+                }
+            }
+            return nodeIds;
+        }
+    }
+
+    /**
+     * Удаляет узлы, сигнала "я жив" от которых не было с указанного момента.
+     */
+    public void deleteDeadNodes(long heartbeatBefore) throws SQLException {
+        try (Connection connection = connect()) {
+            update(connection, "DELETE FROM cluster_nodes WHERE heartbeat_at < ?", heartbeatBefore);
+        }
+    }
+
+    /**
+     * Захватывает или продлевает аренду роли лидера. Аренду можно получить, если ее держит этот же узел, если ее
+     * никто не держит или если она истекла.
+     *
+     * @param nodeId id узла
+     * @param now текущий момент
+     * @param expiresAt до какого момента будет действовать аренда
+     * @return true, если аренда теперь принадлежит этому узлу
+     */
+    public boolean tryAcquireLeaderLease(String nodeId, long now, long expiresAt) throws SQLException {
+        try (Connection connection = connect()) {
+            if (update(connection, "UPDATE leader_lease SET holder = ?, expires_at = ? " +
+                    "WHERE lease_name = ? AND (holder = ? OR expires_at < ?)",
+                    nodeId, expiresAt, LEADER_LEASE_NAME, nodeId, now) == 1) {
+                return true;
+            }
+            return insertIfAbsent(connection, "INSERT INTO leader_lease (lease_name, holder, expires_at) " +
+                    "VALUES (?, ?, ?)", LEADER_LEASE_NAME, nodeId, expiresAt);
+        }
+    }
+
+    /**
+     * Освобождает аренду роли лидера, если она принадлежит этому узлу, - чтобы другой узел мог стать лидером сразу,
+     * не дожидаясь истечения аренды.
+     */
+    public void releaseLeaderLease(String nodeId) throws SQLException {
+        try (Connection connection = connect()) {
+            update(connection, "DELETE FROM leader_lease WHERE lease_name = ? AND holder = ?",
+                    LEADER_LEASE_NAME, nodeId);
+        }
+    }
+
+    /**
+     * Удаляет узел из списка узлов кластера.
+     */
+    public void deleteNode(String nodeId) throws SQLException {
+        try (Connection connection = connect()) {
+            update(connection, "DELETE FROM cluster_nodes WHERE node_id = ?", nodeId);
+        }
+    }
+
+    /**
+     * Публикует снимок котировок, если опубликованный ранее снимок имеет меньший номер версии.
+     */
+    public void publishSnapshot(long version, byte[] data) throws SQLException {
+        try (Connection connection = connect()) {
+            if (update(connection, "UPDATE quotes_snapshot SET version = ?, data = ? WHERE id = ? AND version < ?",
+                    version, data, SNAPSHOT_ROW_ID, version) == 0) {
+                insertIfAbsent(connection, "INSERT INTO quotes_snapshot (id, version, data) VALUES (?, ?, ?)",
+                        SNAPSHOT_ROW_ID, version, data);
+            }
+        }
+    }
+
+    /**
+     * Возвращает опубликованный снимок котировок, если номер его версии больше указанного, иначе null.
+     */
+    public byte[] loadSnapshotNewerThan(long version) throws SQLException {
+        try (Connection connection = connect(); PreparedStatement statement = connection.prepareStatement(
+                "SELECT data FROM quotes_snapshot WHERE id = ? AND version > ?")) {
+            statement.setInt(1, SNAPSHOT_ROW_ID);
+            statement.setLong(2, version);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next() ? resultSet.getBytes(1) : null;
+            }
+        }
+    }
+
+    /**
+     * Добавляет пользователя (если его еще нет).
+     */
+    public void addSubscriber(long chatId) throws SQLException {
+        try (Connection connection = connect()) {
+            insertIfAbsent(connection, "INSERT INTO subscribers (chat_id, ring_hash) VALUES (?, ?)",
+                    chatId, ConsistentHashRing.hashOf(chatId));
+        }
+    }
+
+    /**
+     * Удаляет пользователя.
+     */
+    public void removeSubscriber(long chatId) throws SQLException {
+        try (Connection connection = connect()) {
+            update(connection, "DELETE FROM subscribers WHERE chat_id = ?", chatId);
+        }
+    }
+
+    /**
+     * Выполняет действие для chatId каждого пользователя, хэш которого (ring_hash) лежит в указанном диапазоне.
+     * Пользователи читаются порциями по SUBSCRIBERS_PAGE_SIZE в порядке ring_hash, и для каждой порции берется из пула
+     * свое соединение - так соединение не занято, пока действие выполняется (например, ждет места в очереди рассылки).
+     *
+     * @param fromHash начало диапазона хэшей включительно
+     * @param toHash конец диапазона хэшей включительно
+     */
+    public void forEachSubscriberInRange(long fromHash, long toHash, LongConsumer action) throws SQLException {
+        long[] chatIds = new long[SUBSCRIBERS_PAGE_SIZE];
+        long pageFromHash = fromHash;
+        while (true) {
+            int count = 0;
+            long lastHash = pageFromHash;
+            try (Connection connection = connect(); PreparedStatement statement = connection.prepareStatement(
+                    "SELECT chat_id, ring_hash FROM subscribers WHERE ring_hash >= ? AND ring_hash <= ? " +
+                            "ORDER BY ring_hash LIMIT " + SUBSCRIBERS_PAGE_SIZE)) {
+                statement.setLong(1, pageFromHash);
+                statement.setLong(2, toHash);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        chatIds[count++] = resultSet.getLong(1);
+                        lastHash = resultSet.getLong(2);
+                    }
+                }
+            }
+            for (int i = 0; i < count; i++) {
+                action.accept(chatIds[i]);
+            }
+            if (count < SUBSCRIBERS_PAGE_SIZE || lastHash == toHash) {
+                return;
+            }
+            pageFromHash = lastHash + 1; // хэши уникальны, так как хэш - взаимно однозначная функция chatId
+        }
+    }
+
+    /**
+     * Записывает состав рассылки, если он еще не записан.
+     *
+     * @param epoch номер рассылки
+     * @param nodeIds id узлов, между которыми делятся пользователи
+     * @param now текущий момент
+     * @return true, если записан этот состав, false - если состав этой рассылки уже записал другой узел
+     */
+    public boolean insertBroadcastMembership(long epoch, List<String> nodeIds, long now) throws SQLException {
+        try (Connection connection = connect()) {
+            return insertIfAbsent(connection, "INSERT INTO broadcast_membership (epoch, node_ids, created_at) " +
+                    "VALUES (?, ?, ?)", epoch, String.join(NODE_IDS_SEPARATOR, nodeIds), now);
+        }
+    }
+
+    /**
+     * Возвращает id узлов, между которыми делятся пользователи в рассылке, или null, если ее состав еще не записан.
+     */
+    public List<String> getBroadcastMembership(long epoch) throws SQLException {
+        try (Connection connection = connect(); PreparedStatement statement = connection.prepareStatement(
+                "SELECT node_ids FROM broadcast_membership WHERE epoch = ?")) {
+            statement.setLong(1, epoch);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                String nodeIds = resultSet.getString(1);
+                return nodeIds.isEmpty() ? List.of() : List.of(nodeIds.split(NODE_IDS_SEPARATOR));
+            }
+        }
+    }
+
+    /**
+     * Удаляет составы рассылок с номером меньше указанного.
+     */
+    public void deleteBroadcastMembershipBefore(long epoch) throws SQLException {
+        try (Connection connection = connect()) {
+            update(connection, "DELETE FROM broadcast_membership WHERE epoch < ?", epoch);
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        return dataSource.getConnection();
+    }
+
+    // выполняет изменяющий запрос с параметрами и возвращает количество измененных строк
+    private static int update(Connection connection, String sql, Object... parameters) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            return statement.executeUpdate();
+        }
+    }
+
+    // Выполняет INSERT и возвращает true, если строка вставлена, или false, если строка с таким первичным ключом уже
+    // есть (например, ее только что вставил другой узел).
+    private static boolean insertIfAbsent(Connection connection, String sql, Object... parameters) throws SQLException {
+        try {
+            return update(connection, sql, parameters) == 1;
+        } catch (SQLException e) {
+            if (e.getSQLState() != null && e.getSQLState().startsWith(INTEGRITY_CONSTRAINT_VIOLATION)) {
+                return false;
+            }
+            throw e;
+        }
+    }
+}
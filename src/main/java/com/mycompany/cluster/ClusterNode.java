@@ -0,0 +1,363 @@
+package com.mycompany.cluster;
+
+import com.mycompany.currency.CurrencyQuotes;
+import com.mycompany.currency.QuotesSnapshot;
+import com.mycompany.currency.QuotesSnapshotFile;
+import com.mycompany.my.MyTimer;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Узел кластера из нескольких экземпляров бота (JVM) с общей БД (см. ClusterDatabase).
+ *
+ * Каждые HEARTBEAT_PERIOD_SECONDS секунд узел:
+ * - сообщает в БД, что он жив, и читает список живых узлов;
+ * - пытается захватить или продлить аренду роли лидера. Лидером становится узел, которому это удалось.
+ *
+ * Лидер - единственный узел, который запрашивает котировки у бирж и публикует их снимки в БД, и единственный узел,
+ * который получает сообщения пользователей (long polling Telegram допускает только одного получателя на бота).
+ * Остальные узлы раз в QUOTES_SYNC_PERIOD_SECONDS секунд забирают из БД новый снимок котировок. Ежедневную рассылку
+ * делает каждый узел - своей доле пользователей по кольцу консистентного хэширования (см. ConsistentHashRing). Кольцо
+ * строится не по собственному списку живых узлов (в момент рассылки списки узлов могут различаться), а по составу
+ * рассылки, который записывается в БД один раз на рассылку (см. getBroadcastMembership).
+ *
+ * Если лидер перестал продлевать аренду (упал или потерял связь с БД), после ее истечения лидером станет другой узел.
+ * Сам лидер, не сумевший продлить аренду, перестает считать себя лидером немного раньше ее истечения, чтобы два узла
+ * не считали себя лидерами одновременно.
+ */
+public class ClusterNode {
+
+    /**
+     * Получатель уведомлений о том, что узел стал или перестал быть лидером.
+     */
+    @FunctionalInterface
+    public interface LeadershipListener {
+        void leadershipChanged(boolean leader);
+    }
+
+    // период сигналов "я жив" и продления аренды лидера
+    private static final long HEARTBEAT_PERIOD_SECONDS = 5;
+
+    // длительность аренды роли лидера
+    private static final long LEASE_DURATION_MILLIS = 20_000;
+
+    // за сколько до истечения аренды лидер, не сумевший ее продлить, перестает считать себя лидером
+    private static final long LEASE_SAFETY_MARGIN_MILLIS = 5_000;
+
+    // узел считается живым, если сигнал "я жив" от него был не позже, чем столько мс назад
+    private static final long NODE_TIMEOUT_MILLIS = 20_000;
+
+    // через сколько мс после последнего сигнала "я жив" узел удаляется из таблицы узлов
+    private static final long DEAD_NODE_RETENTION_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    // период получения котировок: лидером - с бирж, остальными узлами - из БД
+    private static final long QUOTES_SYNC_PERIOD_SECONDS = 5;
+
+    // Сколько узел, не являющийся лидером, ждет, пока лидер запишет состав рассылки, прежде чем записать его сам, и
+    // как часто проверяет, не записан ли он.
+    private static final long MEMBERSHIP_WAIT_MILLIS = LEASE_DURATION_MILLIS;
+    private static final long MEMBERSHIP_POLL_MILLIS = 1000;
+
+    // составы скольких последних рассылок хранятся в БД
+    private static final long MEMBERSHIP_RETENTION_EPOCHS = 30;
+
+    private final ClusterDatabase database;
+    private final String nodeId;
+    private final LongSupplier clock; // текущее время в мс от начала эпохи
+
+    // Поток, в котором пользователи добавляются в БД и удаляются из нее, - чтобы поток обработки сообщений
+    // пользователей не ждал БД. Поток один, поэтому подписка и следующая за ней отписка не поменяются местами.
+    private final ExecutorService subscriberWriter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cluster-subscriber-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private MyTimer heartbeatTimer;
+    private MyTimer quotesSyncTimer;
+
+    private CurrencyQuotes quotes;
+    private LeadershipListener leadershipListener;
+
+    private volatile boolean leader;
+    private long leaseValidUntilMillis; // до какого момента лидер может считать себя лидером без продления аренды
+
+    private volatile List<String> liveNodes = List.of();
+
+    // номер версии последнего снимка котировок, опубликованного этим узлом или полученного из БД
+    private volatile long lastSnapshotVersion;
+
+    /**
+     * Конструктор
+     *
+     * @param database общая БД узлов кластера
+     * @param nodeId уникальный id узла
+     */
+    public ClusterNode(ClusterDatabase database, String nodeId) {
+        this(database, nodeId, System::currentTimeMillis);
+    }
+
+    // конструктор для тестов, в которых время задается вручную
+    ClusterNode(ClusterDatabase database, String nodeId, LongSupplier clock) {
+        this.database = database;
+        this.nodeId = nodeId;
+        this.clock = clock;
+    }
+
+    /**
+     * Подключает узел к кластеру: создает таблицы в БД, если их нет, переводит котировки в режим получения от лидера
+     * и запускает периодические сигналы "я жив" и получение котировок. Первая попытка стать лидером делается сразу.
+     *
+     * @param quotes котировки бота
+     * @param leadershipListener получатель уведомлений о том, что узел стал или перестал быть лидером
+     * @throws SQLException если не удалось подключиться к БД
+     */
+    public synchronized void start(CurrencyQuotes quotes, LeadershipListener leadershipListener)
+            throws SQLException {
+        join(quotes, leadershipListener);
+        heartbeatTimer = new MyTimer();
+        heartbeatTimer.schedulePeriodicExecution(this::heartbeat, HEARTBEAT_PERIOD_SECONDS, TimeUnit.SECONDS);
+        quotesSyncTimer = new MyTimer();
+        quotesSyncTimer.schedulePeriodicExecution(this::syncQuotes, QUOTES_SYNC_PERIOD_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Останавливает узел: останавливает сигналы "я жив" и получение котировок, дописывает в БД изменения списка
+     * пользователей, освобождает аренду лидера, чтобы другой узел стал лидером, не дожидаясь ее истечения, и удаляет
+     * узел из списка узлов. Вызывается при остановке приложения, пока пул соединений с БД еще открыт.
+     */
+    public synchronized void stop() {
+        if (heartbeatTimer != null) {
+            heartbeatTimer.cancel();
+            quotesSyncTimer.cancel();
+        }
+        flushSubscriberWrites();
+        subscriberWriter.shutdown();
+        leave();
+    }
+
+    // создает таблицы в БД, если их нет, и переводит котировки в режим получения от лидера - все, что делает start,
+    // кроме запуска периодических задач, которые тесты вызывают сами
+    void join(CurrencyQuotes quotes, LeadershipListener leadershipListener) throws SQLException {
+        this.quotes = quotes;
+        this.leadershipListener = leadershipListener;
+        database.createTables();
+        quotes.setFollower(true);
+        quotes.setSnapshotListener(this::publishSnapshot);
+        syncSnapshot();
+    }
+
+    /**
+     * Возвращает true, если узел сейчас лидер кластера
+     */
+    public boolean isLeader() {
+        return leader;
+    }
+
+    /**
+     * Добавляет пользователя в общий список пользователей кластера. Запись в БД делается в отдельном потоке.
+     */
+    public void addSubscriber(long chatId) {
+        subscriberWriter.execute(() -> {
+            try {
+                database.addSubscriber(chatId);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Удаляет пользователя из общего списка пользователей кластера. Запись в БД делается в отдельном потоке.
+     */
+    public void removeSubscriber(long chatId) {
+        subscriberWriter.execute(() -> {
+            try {
+                database.removeSubscriber(chatId);
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    // ждет, пока в БД будут записаны все уже поставленные в очередь добавления и удаления пользователей
+    void flushSubscriberWrites() {
+        try {
+            subscriberWriter.submit(() -> {}).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Возвращает состав рассылки - id узлов, между которыми делятся ее пользователи. Состав записывается в БД один раз
+     * на рассылку: лидер сразу записывает свой список живых узлов, а остальные узлы сначала до MEMBERSHIP_WAIT_MILLIS
+     * ждут записи лидера и, только если ее так и нет (например, лидер как раз сменяется), записывают свой список.
+     * Какой бы состав ни был записан первым, его используют все узлы, поэтому каждый пользователь попадает в рассылку
+     * ровно одного из узлов состава. Если БД недоступна, возвращает пустой список, и этот узел рассылку пропускает.
+     *
+     * Метод может ждать несколько секунд, поэтому вызывать его нужно не в потоке обработки сообщений пользователей.
+     *
+     * @param epoch номер рассылки, одинаковый на всех узлах
+     */
+    public List<String> getBroadcastMembership(long epoch) {
+        try {
+            if (!leader) {
+                List<String> membership = waitForBroadcastMembership(epoch);
+                if (membership != null) {
+                    return membership;
+                }
+            }
+            List<String> nodes = liveNodes.isEmpty() ? List.of(nodeId) : liveNodes;
+            if (database.insertBroadcastMembership(epoch, nodes, clock.getAsLong())) {
+                database.deleteBroadcastMembershipBefore(epoch - MEMBERSHIP_RETENTION_EPOCHS);
+            }
+            List<String> membership = database.getBroadcastMembership(epoch);
+            return membership != null ? membership : List.of();
+        } catch (SQLException e) {
+            e.printStackTrace();
+            return List.of();
+        }
+    }
+
+    // ждет, пока состав рассылки запишет другой узел, и возвращает его или null, если за MEMBERSHIP_WAIT_MILLIS его так
+    // и не записали
+    private List<String> waitForBroadcastMembership(long epoch) throws SQLException {
+        long deadline = clock.getAsLong() + MEMBERSHIP_WAIT_MILLIS;
+        while (true) {
+            List<String> membership = database.getBroadcastMembership(epoch);
+            if (membership != null || clock.getAsLong() >= deadline) {
+                return membership;
+            }
+            try {
+                Thread.sleep(MEMBERSHIP_POLL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Выполняет действие для chatId каждого пользователя, принадлежащего этому узлу по кольцу, построенному по составу
+     * рассылки (см. getBroadcastMembership). Из БД читаются только пользователи этого узла - запросами по диапазонам
+     * хэшей chatId, принадлежащим ему на кольце. Если узла нет в составе, ничего не делает.
+     */
+    public void forEachOwnSubscriber(List<String> membership, LongConsumer action) {
+        try {
+            for (ConsistentHashRing.HashRange range : new ConsistentHashRing(membership).rangesOf(nodeId)) {
+                database.forEachSubscriberInRange(range.from(), range.to(), action);
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // сигнал "я жив", обновление списка живых узлов и захват или продление аренды лидера
+    void heartbeat() {
+        long now = clock.getAsLong();
+        boolean leaseHeld;
+        try {
+            database.heartbeat(nodeId, now);
+            leaseHeld = database.tryAcquireLeaderLease(nodeId, now, now + LEASE_DURATION_MILLIS);
+            if (leaseHeld) {
+                leaseValidUntilMillis = now + LEASE_DURATION_MILLIS - LEASE_SAFETY_MARGIN_MILLIS;
+                database.deleteDeadNodes(now - DEAD_NODE_RETENTION_MILLIS);
+            }
+
+            List<String> nodes = database.getLiveNodes(now - NODE_TIMEOUT_MILLIS);
+            if (!nodes.equals(liveNodes)) {
+                liveNodes = nodes;
+                System.out.println("Узлы кластера: " + nodes);
+            }
+        } catch (SQLException | RuntimeException e) {
+            e.printStackTrace();
+            // без связи с БД аренду не продлить, но она еще действует какое-то время
+            leaseHeld = leader;
+        }
+        // Обращение к БД может долго висеть (до таймаута получения соединения) и закончиться ошибкой или успехом уже
+        // после истечения аренды, поэтому ее срок проверяется по времени после обращения, а не до него. Иначе узел
+        // остался бы лидером, когда аренду уже мог захватить другой узел.
+        setLeader(leaseHeld && clock.getAsLong() < leaseValidUntilMillis);
+    }
+
+    // переключает узел в режим лидера или обратно
+    private void setLeader(boolean newLeader) {
+        if (newLeader == leader) {
+            return;
+        }
+        if (newLeader) {
+            // перед тем как запрашивать котировки самому, получаем последний снимок прежнего лидера, чтобы номера
+            // версий следующих снимков продолжали его номера
+            syncSnapshot();
+        }
+        quotes.setFollower(!newLeader);
+        leader = newLeader;
+        System.out.println("Узел " + nodeId + (newLeader ? " стал лидером кластера" : " больше не лидер кластера"));
+        leadershipListener.leadershipChanged(newLeader);
+    }
+
+    // получение котировок: лидер обновляет их с бирж (и публикует, см. publishSnapshot), остальные берут из БД
+    private void syncQuotes() {
+        try {
+            if (leader) {
+                quotes.getRelevantQuotes();
+            } else {
+                syncSnapshot();
+            }
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // исключение в задаче MyTimer остановило бы таймер
+        }
+    }
+
+    // публикует новый снимок котировок, полученных лидером с бирж
+    private void publishSnapshot(QuotesSnapshot snapshot) {
+        if (!leader) {
+            return;
+        }
+        try {
+            database.publishSnapshot(snapshot.version(), QuotesSnapshotFile.encode(snapshot, Instant.now()));
+            lastSnapshotVersion = snapshot.version();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // забирает из БД снимок котировок, если там есть более новый, чем последний известный этому узлу
+    private synchronized void syncSnapshot() {
+        try {
+            byte[] data = database.loadSnapshotNewerThan(lastSnapshotVersion);
+            if (data == null) {
+                return;
+            }
+            QuotesSnapshotFile.StoredSnapshot stored = QuotesSnapshotFile.decode(ByteBuffer.wrap(data));
+            if (stored != null) {
+                quotes.applySnapshot(stored.snapshot());
+                lastSnapshotVersion = stored.snapshot().version();
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // освобождает аренду лидера и удаляет узел из списка узлов
+    private void leave() {
+        try {
+            database.releaseLeaderLease(nodeId);
+            database.deleteNode(nodeId);
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
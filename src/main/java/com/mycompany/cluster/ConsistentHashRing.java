@@ -0,0 +1,122 @@
+package com.mycompany.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Кольцо консистентного хэширования: распределяет пользователей (chatId) между узлами кластера.
+ *
+ * Каждый узел занимает на кольце 64-битных хэшей VIRTUAL_NODES точек ("виртуальных узлов"), а пользователь
+ * принадлежит узлу, чья точка первой встречается на кольце после хэша его chatId. Благодаря этому при появлении или
+ * исчезновении узла меняют владельца только пользователи этого узла (примерно 1/N всех), а не почти все, как было бы
+ * при распределении по остатку от деления chatId на количество узлов. Много виртуальных узлов нужно, чтобы доли
+ * узлов получились примерно равными.
+ *
+ * Хэши зависят только от id узлов и chatId, поэтому все узлы, знающие одинаковый список живых узлов, строят одинаковое
+ * кольцо и одинаково делят пользователей. Кольцо неизменяемое.
+ *
+ * Хэш chatId хранится в БД вместе с пользователем (см. ClusterDatabase), поэтому узел может выбрать из БД только
+ * своих пользователей - запросами по диапазонам хэшей, которые ему принадлежат (см. rangesOf()).
+ */
+public class ConsistentHashRing {
+
+    /**
+     * Диапазон хэшей на кольце, обе границы включительно.
+     */
+    public record HashRange(long from, long to) {}
+
+    // количество точек каждого узла на кольце
+    private static final int VIRTUAL_NODES = 128;
+
+    // точки кольца: хэш -> id узла
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * Строит кольцо по списку id узлов
+     */
+    public ConsistentHashRing(Collection<String> nodeIds) {
+        for (String nodeId : nodeIds) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                ring.put(hash(nodeId + "#" + i), nodeId);
+            }
+        }
+    }
+
+    /**
+     * Возвращает id узла, которому принадлежит пользователь, или null, если узлов нет
+     */
+    public String nodeFor(long chatId) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        Map.Entry<Long, String> entry = ring.ceilingEntry(hashOf(chatId));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * Возвращает диапазоны хэшей chatId (см. hashOf()), пользователи из которых принадлежат узлу, в порядке
+     * возрастания. Если узла нет на кольце, возвращает пустой список.
+     */
+    public List<HashRange> rangesOf(String nodeId) {
+        List<HashRange> ranges = new ArrayList<>();
+        if (ring.isEmpty()) {
+            return ranges;
+        }
+        // точке принадлежат хэши после предыдущей точки и до нее самой включительно
+        long from = Long.MIN_VALUE;
+        for (Map.Entry<Long, String> point : ring.entrySet()) {
+            if (point.getValue().equals(nodeId)) {
+                addRange(ranges, from, point.getKey());
+            }
+            from = point.getKey() + 1;
+        }
+        // хэши после последней точки принадлежат первой точке кольца
+        if (ring.lastKey() != Long.MAX_VALUE && ring.firstEntry().getValue().equals(nodeId)) {
+            addRange(ranges, ring.lastKey() + 1, Long.MAX_VALUE);
+        }
+        return ranges;
+    }
+
+    /**
+     * Возвращает хэш chatId - его позицию на кольце.
+     */
+    public static long hashOf(long chatId) {
+        return mix(chatId);
+    }
+
+    // добавляет диапазон в конец списка, объединяя его с последним диапазоном, если они соседние
+    private static void addRange(List<HashRange> ranges, long from, long to) {
+        if (!ranges.isEmpty() && ranges.get(ranges.size() - 1).to() + 1 == from) {
+            HashRange last = ranges.remove(ranges.size() - 1);
+            ranges.add(new HashRange(last.from(), to));
+        } else {
+            ranges.add(new HashRange(from, to));
+        }
+    }
+
+    // хэш строки: FNV-1a по байтам UTF-8 с последующим перемешиванием битов
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    // перемешивает биты числа (финализатор из MurmurHash3)
+    private static long mix(long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
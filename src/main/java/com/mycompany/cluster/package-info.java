@@ -0,0 +1,6 @@
+/**
+ * Пакет содержит кластерный режим бота: несколько узлов (JVM) с общей БД, один из которых выбирается лидером,
+ * запрашивает котировки и получает сообщения пользователей, а ежедневную рассылку каждый узел делает своей доле
+ * пользователей.
+ * */
+package com.mycompany.cluster;
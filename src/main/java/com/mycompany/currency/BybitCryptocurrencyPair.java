@@ -1,14 +1,11 @@
 package com.mycompany.currency;
 
-import com.mycompany.HttpRequestFactory;
-import com.mycompany.json.JsonReader;
 import lombok.AllArgsConstructor;
 import lombok.Getter;
 
-import java.util.Map;
-
 /**
- * Криптовалютная пара, торгующаяся на бирже Bybit.
+ * Криптовалютная пара, торгующаяся на бирже Bybit. Котировки пар запрашивает у биржи
+ * com.mycompany.exchange.BybitConnector (или резервный коннектор, см. com.mycompany.exchange.ExchangeConnectors).
  */
 @Getter
 @AllArgsConstructor
@@ -22,32 +19,4 @@ public enum BybitCryptocurrencyPair implements CurrencyPair {
     private final String ticker; // тикер данной валютной пары на бирже Bybit
     private final String firstCurrencyCode; // код базовой (первой из двух) валюты
     private final String secondCurrencyCode; // код второй валюты
-
-    /**
-     * Возвращает котировку данной криптовалютной пары.
-     */
-    @Override
-    public double getQuote() {
-        return getLastMarketPrice();
-    }
-
-    /**
-     * Возвращает цену последней сделки (котировка "lastPrice" из json-ответа биржи Bybit) за текущую торговую сессию
-     * по данной валютной паре. Пример такого json-ответа приведен в файле:
-     * src/example/bybit_wlkn_usdt_marketdata.json
-     */
-    private Double getLastMarketPrice() {
-        Map<String, String> currencyPairData = getMarketDataFromBybit();
-        String lastPriceStr = currencyPairData.get("lastPrice");
-        return Double.parseDouble(lastPriceStr);
-    }
-
-    /**
-     * Возвращает Map с биржевыми данными торгов по данной криптовалютной паре.
-     */
-    private Map<String, String> getMarketDataFromBybit() {
-        String bybitMarketDataJsonResponse = HttpRequestFactory.newBybitMarketDataRequest(this);
-        return JsonReader.parseBybitMarketDataToMap(bybitMarketDataJsonResponse);
-    }
-
-}
\ No newline at end of file
+}
@@ -20,12 +20,22 @@ import static com.mycompany.currency.MoexCurrencyPair.*;
 @AllArgsConstructor
 public enum CalculatedQuoteCurrencyPair implements CurrencyPair {
 
-    RUB_KZT(1 / KZT_RUB.getQuote() ,"RUB","KZT"); // рубль к казахстанскому тенге
+    RUB_KZT(KZT_RUB, "RUB", "KZT"); // рубль к казахстанскому тенге
 
-    private final double quote; // рассчитанная котировка данной валютной пары
+    // Валютная пара, торгующаяся на бирже, обратной котировкой к которой является котировка данной валютной пары.
+    // Саму котировку здесь не храним, а рассчитываем по котировке этой пары (см. calculateQuote()): раньше она
+    // рассчитывалась прямо в конструкторе, из-за чего уже при загрузке этого класса отправлялись запросы к Мосбирже.
+    private final CurrencyPair invertedPair;
     private final String firstCurrencyCode; // код базовой (первой) валюты
     private final String secondCurrencyCode; // код второй валюты
 
+    /**
+     * Рассчитывает котировку данной валютной пары по котировке пары invertedPair, полученной с биржи.
+     */
+    public double calculateQuote(double invertedPairQuote) {
+        return 1 / invertedPairQuote;
+    }
+
     /**
      * Так как котировки данных валютных пар рассчитываются на основе котировок других валютных пар, а не берутся с
      * биржи, то тикера у них нет.
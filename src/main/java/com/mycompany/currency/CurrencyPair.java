@@ -1,7 +1,8 @@
 package com.mycompany.currency;
 
 /**
- * Валютная пара
+ * Валютная пара. Хранит только описание пары, а котировки запрашивают у бирж коннекторы
+ * (см. com.mycompany.exchange.ExchangeConnector).
  */
 public interface CurrencyPair {
 
@@ -10,11 +11,6 @@ public interface CurrencyPair {
      */
     String getTicker();
 
-    /**
-     * Возвращает котировку данной валютной пары
-     */
-    double getQuote();
-
     /**
      * Возвращает код базовой (первой из двух) валюты
      */
@@ -1,11 +1,27 @@
 package com.mycompany.currency;
 
 import com.mycompany.Utilities;
-import com.mycompany.my.MyTimer;
+import com.mycompany.exchange.ExchangeConnectors;
+import com.mycompany.trace.Span;
+import com.mycompany.trace.Tracer;
 
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.concurrent.TimeUnit;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import static com.mycompany.currency.MoexCurrencyPair.*;
 import static com.mycompany.currency.BybitCryptocurrencyPair.*;
@@ -22,72 +38,389 @@ public class CurrencyQuotes {
     private Map<CurrencyPair, Double> currencyQuotes = new LinkedHashMap<>();
     private Map<CurrencyPair, Double> cryptoCurrencyQuotes = new LinkedHashMap<>();
 
-    // Флаг актуальности котировки.
-    // Нужен для того, чтобы при обращении к боту одновременно 100 юзеров, бот не отправлял одновременно 100 запросов к
-    // бирже, а обратился к ней 1 раз, сохранил у себя в поле currencyQuotes полученные котировки на время, равное
-    // длительности актуальности котировки, и при обращениях юзеров в течение этого времени возвращал бы им эти
-    // сохраненные котировки.
-    private volatile boolean quotesRelevant;
+    // Моменты времени, до которых котировки считаются актуальными, отдельно для каждой биржи.
+    // Нужны для того, чтобы при обращении к боту одновременно 100 юзеров, бот не отправлял одновременно 100 запросов к
+    // бирже, а обратился к ней 1 раз, сохранил у себя в поле currencyQuotes полученные котировки и до наступления
+    // этого момента возвращал бы юзерам эти сохраненные котировки.
+    private Instant moexQuotesRelevantUntil = Instant.EPOCH;
+    private Instant bybitQuotesRelevantUntil = Instant.EPOCH;
 
-    // получает актуальные котировки для каждой валютной пары
+    // Периоды опроса бирж во время торгов. У каждой биржи свой: Мосбиржа отдает котировки с задержкой 15 мин, и
+    // опрашивать ее чаще нескольких минут бессмысленно, а Bybit торгует круглосуточно в реальном времени.
+    private final Duration moexPollPeriod;
+    private final Duration bybitPollPeriod;
+
+    // Снимок последних полученных котировок, пересоздается при каждом их обновлении. Вместе с котировками в нем
+    // хранятся готовые тексты сообщений, поэтому получение сообщений не требует ни блокировки, ни форматирования.
+    private volatile QuotesSnapshot snapshot;
+
+    // Файл, в который сохраняется снимок при каждом изменении котировок. При запуске бот восстанавливает из него
+    // последний снимок и сразу отвечает по нему пользователям.
+    private final Path snapshotFile;
+
+    // Запись снимка в файл идет в отдельном потоке, а не под блокировкой этого объекта, чтобы запросы пользователей и
+    // снимки от лидера кластера не ждали диска. Если снимки приходят быстрее, чем записываются, в файл попадает только
+    // последний из них: pendingSave хранит снимок, ожидающий записи (null - записывать нечего).
+    private final AtomicReference<QuotesSnapshotFile.StoredSnapshot> pendingSave = new AtomicReference<>();
+    private final ExecutorService snapshotWriter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "quotes-snapshot-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Момент сохранения снимка, восстановленного из файла при запуске, - пока котировки после запуска еще не
+    // обновлены с бирж. Пока он не null, сообщения с котировками начинаются с предупреждения о возрасте данных.
+    private volatile Instant restoredSnapshotSavedAt;
+
+    // true, пока после восстановления снимка из файла идет фоновое обновление котировок
+    private final AtomicBoolean backgroundRefreshRunning = new AtomicBoolean();
+
+    // В кластерном режиме (см. com.mycompany.cluster) котировки у бирж запрашивает только узел-лидер, а остальные
+    // узлы (follower = true) получают от него готовые снимки через applySnapshot().
+    private volatile boolean follower;
+
+    // получатель каждого нового снимка котировок (в кластерном режиме - публикация снимка для остальных узлов)
+    private volatile Consumer<QuotesSnapshot> snapshotListener;
+
+    // Время последнего обновления котировок на Мосбирже (свойство UPDATETIME) при последнем опросе, и сколько опросов
+    // подряд оно не менялось. Если во время торгов по календарю оно не меняется, значит торгов на самом деле нет
+    // (например, нерабочий день, которого нет в календаре), и опрашивать Мосбиржу можно реже.
+    private String quotesUpdateTime;
+    private int unchangedUpdateTimeCount;
+
+    // Конец торговой сессии, во время которой был предыдущий опрос Мосбиржи, или null, если торги тогда не шли.
+    // Счетчик unchangedUpdateTimeCount считается только в пределах одной сессии: после закрытия или открытия торгов
+    // он сбрасывается, чтобы редкие опросы конца прошлой сессии не переходили на начало следующей.
+    private Instant moexSessionEndAtLastPoll;
+
+    // Биржи, приславшие котировки криптовалют при последнем опросе, через запятую. Обычно это Bybit, но если он не
+    // ответил вовремя, часть котировок присылает резервная биржа (см. ExchangeConnectors).
+    private String cryptoQuotesExchanges = "";
+
+    // во сколько раз максимально может быть увеличен период опроса Мосбиржи, если UPDATETIME не меняется
+    private static final int MAX_MOEX_BACKOFF_SHIFT = 4; // 2^4 = 16 раз
+
+    // сообщение пользователю, если котировки еще ни разу не получены
+    private static final String QUOTES_NOT_AVAILABLE_MESSAGE = "Котировки пока недоступны, попробуйте через минуту";
+
+    // формат времени обновления котировок в сообщениях пользователям
+    private static final DateTimeFormatter UPDATE_TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+
+    /**
+     * Конструктор
+     *
+     * @param moexPollPeriod период опроса Мосбиржи во время торгов
+     * @param bybitPollPeriod период опроса биржи Bybit
+     * @param snapshotFile файл для сохранения последнего снимка котировок
+     */
+    public CurrencyQuotes(Duration moexPollPeriod, Duration bybitPollPeriod, Path snapshotFile) {
+        this.moexPollPeriod = moexPollPeriod;
+        this.bybitPollPeriod = bybitPollPeriod;
+        this.snapshotFile = snapshotFile;
+        restoreSnapshot();
+    }
+
+    // Получает актуальные котировки для каждой валютной пары.
+    // Если котировки восстановлены из файла и устарели, не ждет их обновления, а запускает его в фоне - пока оно
+    // идет, пользователям отправляются восстановленные котировки с предупреждением об их возрасте.
+    // На узле, который не является лидером кластера, ничего не делает: котировки приходят от лидера.
     public void getRelevantQuotes() {
-        if (!quotesRelevant) { // если котировки неактуальны, получаем актуальные и кладем в mapы
+        if (follower) {
+            return;
+        }
+        if (restoredSnapshotSavedAt != null) {
+            refreshInBackground();
+            return;
+        }
+        refresh();
+    }
 
-            // фиатные валюты
-            currencyQuotes.put(USD_RUB,   USD_RUB.getQuote());
-            currencyQuotes.put(EUR_RUB,   EUR_RUB.getQuote());
-            currencyQuotes.put(CNY_RUB,   CNY_RUB.getQuote());
-            currencyQuotes.put(TRY_RUB,   TRY_RUB.getQuote());
-            currencyQuotes.put(EUR_USD,   EUR_USD.getQuote());
-            currencyQuotes.put(USD_KZT,   USD_KZT.getQuote());
-            currencyQuotes.put(RUB_KZT,   RUB_KZT.getQuote());
+    // получает актуальные котировки под блокировкой, чтобы к биржам одновременно обращался только один поток
+    private synchronized void refresh() {
+        try (Span span = Tracer.startSpan("getRelevantQuotes")) {
+            getRelevantQuotes(span);
+        }
+    }
+
+    // получает актуальные котировки для каждой валютной пары, span - отрезок трассы для этой операции
+    private void getRelevantQuotes(Span span) {
+        Instant now = Instant.now();
+        boolean refreshed = false;
+        if (!now.isBefore(moexQuotesRelevantUntil)) { // если котировки неактуальны, получаем актуальные и кладем в mapы
+            refreshMoexQuotes(now);
+            refreshed = true;
+            span.setAttribute("moex.refreshed", true);
+        }
+        if (!now.isBefore(bybitQuotesRelevantUntil)) {
+            refreshBybitQuotes(now);
+            refreshed = true;
+            span.setAttribute("bybit.refreshed", true);
+        }
 
-            // крипта
-            cryptoCurrencyQuotes.put(BTC_USDT,  BTC_USDT.getQuote());
-            cryptoCurrencyQuotes.put(ETH_USDT,  ETH_USDT.getQuote());
-            cryptoCurrencyQuotes.put(SOL_USDT,  SOL_USDT.getQuote());
-            cryptoCurrencyQuotes.put(WLKN_USDT, WLKN_USDT.getQuote());
+        if (refreshed) {
+            Instant relevantUntil = moexQuotesRelevantUntil.isBefore(bybitQuotesRelevantUntil)
+                    ? moexQuotesRelevantUntil : bybitQuotesRelevantUntil;
+            QuotesSnapshot previous = snapshot;
+            long version = previous != null ? previous.version() + 1 : 1;
+            // копии мап делаем неизменяемыми LinkedHashMap, чтобы сохранить порядок валютных пар
+            snapshot = new QuotesSnapshot(version, Collections.unmodifiableMap(new LinkedHashMap<>(currencyQuotes)),
+                    Collections.unmodifiableMap(new LinkedHashMap<>(cryptoCurrencyQuotes)), quotesUpdateTime,
+                    relevantUntil, buildFiatCurrenciesQuotesMessage(), buildCryptocurrenciesQuotesMessage());
+            restoredSnapshotSavedAt = null;
 
-            quotesRelevant = true; // устанавливаем флаг актуальности котировок
+            Consumer<QuotesSnapshot> listener = snapshotListener;
+            if (listener != null) {
+                listener.accept(snapshot);
+            }
 
-            // длительность актуальности котировок
-            final int quotesRelevanceDuration = 5; // в минутах
-            // через 5 мин (длительность актуальности котировок, quotesRelevanceDuration) сбрасываем флаг актуальности
-            new MyTimer().schedule(() -> quotesRelevant = false, quotesRelevanceDuration, TimeUnit.MINUTES);
+            // в файл снимок записываем, только если котировки изменились
+            if (previous == null || !previous.fiatQuotes().equals(snapshot.fiatQuotes())
+                    || !previous.cryptoQuotes().equals(snapshot.cryptoQuotes())
+                    || !Objects.equals(previous.quotesUpdateTime(), snapshot.quotesUpdateTime())) {
+                saveInBackground(snapshot, now);
+            }
         }
     }
 
-    // Возвращает текст сообщения с котировками, которое будет отправлено пользователям
-    public String getFiatCurrenciesQuotesMessage() {
-        String quotesUpdateTime = USD_RUB.getQuotesUpdateTime(); // получаем время последнего обновления котировок
+    /**
+     * Возвращает снимок последних полученных котировок или null, если котировки еще ни разу не запрашивались и не
+     * были восстановлены из файла. Снимок не меняется при следующих обновлениях котировок - вместо этого создается
+     * новый снимок с большей версией.
+     */
+    public QuotesSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Включает или выключает режим узла, не являющегося лидером кластера: в этом режиме котировки не запрашиваются
+     * у бирж, а приходят от лидера через applySnapshot().
+     */
+    public void setFollower(boolean follower) {
+        this.follower = follower;
+    }
 
-        // формируем текст сообщения для отправки пользователям
-        String messageHeader = "Курсы валют на " + quotesUpdateTime + " по мск:\n";
-        String messageBody = buildMessageBody(currencyQuotes);
-        return messageHeader + messageBody;
+    /**
+     * Устанавливает получателя каждого нового снимка котировок, полученных с бирж. Получатель вызывается в потоке,
+     * обновившем котировки, под блокировкой этого объекта.
+     */
+    public void setSnapshotListener(Consumer<QuotesSnapshot> snapshotListener) {
+        this.snapshotListener = snapshotListener;
+    }
+
+    /**
+     * Заменяет котировки снимком, полученным от узла-лидера кластера. Котировки снимка считаются актуальными до
+     * snapshot.relevantUntil(), а номер следующего собственного снимка будет на 1 больше номера этого снимка -
+     * это нужно, если этот узел потом сам станет лидером.
+     */
+    public synchronized void applySnapshot(QuotesSnapshot leaderSnapshot) {
+        currencyQuotes.clear();
+        currencyQuotes.putAll(leaderSnapshot.fiatQuotes());
+        cryptoCurrencyQuotes.clear();
+        cryptoCurrencyQuotes.putAll(leaderSnapshot.cryptoQuotes());
+        quotesUpdateTime = leaderSnapshot.quotesUpdateTime();
+        moexQuotesRelevantUntil = leaderSnapshot.relevantUntil();
+        bybitQuotesRelevantUntil = leaderSnapshot.relevantUntil();
+        snapshot = leaderSnapshot;
+        restoredSnapshotSavedAt = null;
+        saveInBackground(leaderSnapshot, Instant.now());
+    }
+
+    // Ставит снимок в очередь на запись в файл и сразу возвращает управление. Новая задача записи создается, только
+    // если предыдущая уже забрала свой снимок, иначе она запишет этот, более новый.
+    private void saveInBackground(QuotesSnapshot snapshotToSave, Instant savedAt) {
+        QuotesSnapshotFile.StoredSnapshot stored = new QuotesSnapshotFile.StoredSnapshot(snapshotToSave, savedAt);
+        if (pendingSave.getAndSet(stored) == null) {
+            snapshotWriter.execute(() -> {
+                QuotesSnapshotFile.StoredSnapshot latest = pendingSave.getAndSet(null);
+                QuotesSnapshotFile.save(snapshotFile, latest.snapshot(), latest.savedAt());
+            });
+        }
+    }
+
+    // Восстанавливает последний снимок котировок из файла. Если котировки снимка еще актуальны (бот быстро
+    // перезапустился), они используются как только что полученные. Иначе они используются, пока не будут получены
+    // актуальные котировки (при первом обращении к getRelevantQuotes() они запрашиваются в фоне). При запуске
+    // обращений к биржам нет.
+    private void restoreSnapshot() {
+        QuotesSnapshotFile.StoredSnapshot stored = QuotesSnapshotFile.load(snapshotFile);
+        if (stored == null) {
+            return;
+        }
+        QuotesSnapshot restored = stored.snapshot();
+        currencyQuotes.putAll(restored.fiatQuotes());
+        cryptoCurrencyQuotes.putAll(restored.cryptoQuotes());
+        quotesUpdateTime = restored.quotesUpdateTime();
+        snapshot = restored;
+
+        if (Instant.now().isBefore(restored.relevantUntil())) {
+            moexQuotesRelevantUntil = restored.relevantUntil();
+            bybitQuotesRelevantUntil = restored.relevantUntil();
+            return;
+        }
+
+        restoredSnapshotSavedAt = stored.savedAt();
+    }
+
+    /**
+     * Возвращает true, если есть снимок котировок, пригодный для рассылки: полученный с бирж (или от лидера кластера)
+     * либо восстановленный из файла, пока его котировки еще актуальны. Устаревший восстановленный снимок, котировки
+     * которого сейчас обновляются, не подходит: рассылка разошлась бы всем пользователям со старыми котировками.
+     */
+    public boolean hasRefreshedSnapshot() {
+        return snapshot != null && restoredSnapshotSavedAt == null;
+    }
+
+    /**
+     * Запускает обновление котировок в фоновом потоке, если они устарели и обновление еще не запущено, и сразу
+     * возвращает управление. Нужен там, где ждать ответа бирж нельзя (например, при ответе на inline-запрос): ответ
+     * дается по текущему снимку, а следующие запросы получат уже обновленный.
+     */
+    public void refreshInBackground() {
+        if (follower) {
+            return;
+        }
+        QuotesSnapshot current = snapshot;
+        if (current != null && restoredSnapshotSavedAt == null && Instant.now().isBefore(current.relevantUntil())) {
+            return; // котировки актуальны
+        }
+        if (!backgroundRefreshRunning.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                e.printStackTrace(); // не удалось - обновление запустится снова при следующем обращении
+            } finally {
+                backgroundRefreshRunning.set(false);
+            }
+        }, "quotes-background-refresh");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Получает на Мосбирже котировки фиатных валют и определяет, до какого момента они будут актуальны. Время
+    // обновления котировок берется из ответа коннектора по паре USD/RUB, а если биржа его не сообщила - текущее.
+    private void refreshMoexQuotes(Instant now) {
+        ExchangeConnectors.SourcedQuote usdRub = ExchangeConnectors.fetchSourcedQuote(USD_RUB);
+        currencyQuotes.put(USD_RUB,   usdRub.quote());
+        currencyQuotes.put(EUR_RUB,   ExchangeConnectors.fetchSourcedQuote(EUR_RUB).quote());
+        currencyQuotes.put(CNY_RUB,   ExchangeConnectors.fetchSourcedQuote(CNY_RUB).quote());
+        currencyQuotes.put(TRY_RUB,   ExchangeConnectors.fetchSourcedQuote(TRY_RUB).quote());
+        currencyQuotes.put(EUR_USD,   ExchangeConnectors.fetchSourcedQuote(EUR_USD).quote());
+        currencyQuotes.put(USD_KZT,   ExchangeConnectors.fetchSourcedQuote(USD_KZT).quote());
+        currencyQuotes.put(RUB_KZT,   RUB_KZT.calculateQuote(
+                ExchangeConnectors.fetchSourcedQuote(RUB_KZT.getInvertedPair()).quote()));
+
+        String updateTime = usdRub.updateTime() != null ? usdRub.updateTime()
+                : UPDATE_TIME_FORMAT.format(now.atZone(MoexTradingCalendar.MOSCOW));
+        moexQuotesRelevantUntil = calculateMoexQuotesRelevantUntil(now, updateTime);
+        quotesUpdateTime = updateTime;
+    }
+
+    // получает на бирже Bybit (или резервной бирже) котировки криптовалют и запоминает, какие биржи их прислали
+    private void refreshBybitQuotes(Instant now) {
+        Set<String> exchanges = new LinkedHashSet<>();
+        for (BybitCryptocurrencyPair currencyPair : List.of(BTC_USDT, ETH_USDT, SOL_USDT, WLKN_USDT)) {
+            ExchangeConnectors.SourcedQuote quote = ExchangeConnectors.fetchSourcedQuote(currencyPair);
+            cryptoCurrencyQuotes.put(currencyPair, quote.quote());
+            if (quote.exchangeName() != null) {
+                exchanges.add(quote.exchangeName());
+            }
+        }
+        cryptoQuotesExchanges = String.join(", ", exchanges);
+
+        bybitQuotesRelevantUntil = now.plus(bybitPollPeriod);
+    }
+
+    // Определяет, до какого момента будут актуальны только что полученные котировки Мосбиржи:
+    // - если торги не идут, котировки не изменятся до открытия следующего торгового дня;
+    // - если торги идут, котировки актуальны в течение периода опроса, который удваивается с каждым опросом, на
+    //   котором UPDATETIME не изменилось в пределах той же сессии. Но не дольше окончания торгов, чтобы сразу после
+    //   него получить котировки закрытия.
+    private Instant calculateMoexQuotesRelevantUntil(Instant now, String updateTime) {
+        ZonedDateTime nowInMoscow = now.atZone(MoexTradingCalendar.MOSCOW);
+        if (!MoexTradingCalendar.isOpen(nowInMoscow)) {
+            unchangedUpdateTimeCount = 0;
+            moexSessionEndAtLastPoll = null;
+            return MoexTradingCalendar.nextOpen(nowInMoscow).toInstant();
+        }
+
+        Instant sessionEnd = MoexTradingCalendar.sessionEnd(nowInMoscow).toInstant();
+        boolean sameSession = sessionEnd.equals(moexSessionEndAtLastPoll);
+        moexSessionEndAtLastPoll = sessionEnd;
+        unchangedUpdateTimeCount = sameSession && updateTime.equals(quotesUpdateTime)
+                ? unchangedUpdateTimeCount + 1 : 0;
+        int backoffShift = Math.min(unchangedUpdateTimeCount, MAX_MOEX_BACKOFF_SHIFT);
+        Duration pollPeriod = moexPollPeriod.multipliedBy(1L << backoffShift);
+        Instant relevantUntil = now.plus(pollPeriod);
+        return relevantUntil.isBefore(sessionEnd) ? relevantUntil : sessionEnd;
+    }
+
+    // Возвращает текст сообщения с котировками, которое будет отправлено пользователям. Если котировок еще нет
+    // (первый запуск без файла снимка, файл поврежден или узел только что стал лидером), - сообщение об этом.
+    public String getFiatCurrenciesQuotesMessage() {
+        QuotesSnapshot current = snapshot;
+        return current != null ? restoredSnapshotWarning() + current.fiatMessage() : QUOTES_NOT_AVAILABLE_MESSAGE;
     }
 
     // Возвращает текст сообщения с котировками криптовалют, которое будет отправлено пользователям
     public String getCryptocurrenciesQuotesMessage() {
-        // формируем текст сообщения с котировками криптовалют для отправки пользователям
-        String messageHeader = "Котировки криптовалют на бирже Bybit:\n";
-        String messageBody = buildMessageBody(cryptoCurrencyQuotes);
-        return messageHeader + messageBody;
+        QuotesSnapshot current = snapshot;
+        return current != null ? restoredSnapshotWarning() + current.cryptoMessage() : QUOTES_NOT_AVAILABLE_MESSAGE;
+    }
+
+    // возвращает предупреждение о возрасте котировок, если они восстановлены из файла и еще не обновлены с бирж
+    private String restoredSnapshotWarning() {
+        Instant savedAt = restoredSnapshotSavedAt;
+        if (savedAt == null) {
+            return "";
+        }
+        long minutes = Duration.between(savedAt, Instant.now()).toMinutes();
+        String age = minutes < 60 ? minutes + " мин"
+                : minutes < 24 * 60 ? minutes / 60 + " ч"
+                : minutes / (24 * 60) + " дн";
+        return "Котировки получены " + age + " назад, сейчас они обновляются.\n\n";
+    }
+
+    // формирует текст сообщения с котировками фиатных валют
+    private String buildFiatCurrenciesQuotesMessage() {
+        try (Span span = Tracer.startSpan("buildFiatCurrenciesQuotesMessage")) {
+            // формируем текст сообщения для отправки пользователям
+            String messageHeader = "Курсы валют на " + quotesUpdateTime + " по мск:\n";
+            String messageBody = buildMessageBody(currencyQuotes);
+            return messageHeader + messageBody;
+        }
+    }
+
+    // формирует текст сообщения с котировками криптовалют
+    private String buildCryptocurrenciesQuotesMessage() {
+        try (Span span = Tracer.startSpan("buildCryptocurrenciesQuotesMessage")) {
+            // формируем текст сообщения с котировками криптовалют для отправки пользователям
+            String messageHeader = "Котировки криптовалют на " + (cryptoQuotesExchanges.contains(",") ? "биржах "
+                    : "бирже ") + cryptoQuotesExchanges + ":\n";
+            String messageBody = buildMessageBody(cryptoCurrencyQuotes);
+            return messageHeader + messageBody;
+        }
     }
 
     // формирует тело текста (без заголовка) сообщения с котировками, которое будет отправлено пользователям
     private String buildMessageBody(Map<CurrencyPair, Double> quotes) {
         StringBuilder messageBuilder = new StringBuilder();
-        quotes.forEach((currencyPair, quote) -> {
-            String firstCurrency = currencyPair.getFirstCurrencyCode();
-            String quoteStr = Utilities.formatDouble(quote);
-            String secondCurrency = currencyPair.getSecondCurrencyCode();
-
-            // метод String.format() заполняет шаблон строки (первый аргумент) строковыми вставками (последующие аргументы)
-            String currencyPairMessage = String.format("\n1 %s = %s %s", firstCurrency, quoteStr, secondCurrency);
-            messageBuilder.append(currencyPairMessage);
-        });
+        quotes.forEach((currencyPair, quote) -> messageBuilder.append("\n").append(formatQuote(currencyPair, quote)));
 
         return messageBuilder.toString();
     }
+
+    /**
+     * Форматирует котировку валютной пары в строку вида "1 $ = 89,5 RUB".
+     */
+    public static String formatQuote(CurrencyPair currencyPair, double quote) {
+        String firstCurrency = currencyPair.getFirstCurrencyCode();
+        String quoteStr = Utilities.formatDouble(quote);
+        String secondCurrency = currencyPair.getSecondCurrencyCode();
+
+        // метод String.format() заполняет шаблон строки (первый аргумент) строковыми вставками (последующие аргументы)
+        return String.format("1 %s = %s %s", firstCurrency, quoteStr, secondCurrency);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+package com.mycompany.currency;
+
+import java.time.LocalDate;
+
+/**
+ * Итоги торгов валютной пары за один торговый день: цены открытия, максимальная, минимальная и закрытия (OHLC).
+ *
+ * @param tradeDate дата торгов
+ * @param open цена открытия
+ * @param high максимальная цена
+ * @param low минимальная цена
+ * @param close цена закрытия
+ */
+public record DailyQuote(LocalDate tradeDate, double open, double high, double low, double close) {
+
+    /**
+     * Возвращает итоги торгов, в которых все цены разделены на divisor. Нужен для пересчета котировок Мосбиржи на
+     * 1 ед. валюты, см. MoexCurrencyPair#getFaceValue().
+     */
+    public DailyQuote dividedBy(int divisor) {
+        return new DailyQuote(tradeDate, open / divisor, high / divisor, low / divisor, close / divisor);
+    }
+}
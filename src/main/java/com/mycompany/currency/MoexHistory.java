@@ -0,0 +1,169 @@
+package com.mycompany.currency;
+
+import com.mycompany.HttpRequestFactory;
+import com.mycompany.Utilities;
+import com.mycompany.json.JsonReader;
+import com.mycompany.trace.Span;
+import com.mycompany.trace.Tracer;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Загружает с Мосбиржи историю торгов валютных пар (итоги торгов по дням) за произвольный диапазон дат и форматирует
+ * ее для отправки пользователям.
+ *
+ * Мосбиржа отдает историю страницами по 100 торговых дней. Сначала загружается первая страница, из которой становится
+ * известно общее количество страниц, а затем все остальные страницы загружаются параллельно. Данные за прошедшие даты
+ * уже никогда не изменятся, поэтому HttpRequestFactory сохраняет загруженные страницы в кэше на диске, и один и тот же
+ * диапазон дат дважды с биржи не загружается.
+ */
+public final class MoexHistory {
+
+    /**
+     * Максимальная длина диапазона дат в днях, за который можно запросить историю
+     */
+    public static final int MAX_RANGE_DAYS = 3660; // около 10 лет, это примерно 25 страниц
+
+    /**
+     * Количество потоков для параллельной загрузки страниц (по нему же рассчитан размер пула http-соединений, см.
+     * HttpRequestFactory)
+     */
+    public static final int PAGE_LOADER_THREADS = 4;
+
+    // точность цен в CSV: 15 значащих цифр - все, которые double хранит без погрешности
+    private static final MathContext CSV_PRICE_PRECISION = new MathContext(15);
+
+    // номер последнего созданного потока загрузки страниц, чтобы у потоков были разные имена
+    private static final AtomicInteger pageLoaderThreadNumber = new AtomicInteger();
+
+    // Потоки для параллельной загрузки страниц. Потоки создаются пулом только при первой загрузке, а признак daemon
+    // позволяет им не мешать завершению приложения.
+    private static final ExecutorService pageLoader = Executors.newFixedThreadPool(PAGE_LOADER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "moex-history-page-loader-" + pageLoaderThreadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Запрещаем создавать экземпляры класса, так как он состоит только из статичных методов.
+     */
+    private MoexHistory() {}
+
+    /**
+     * Проверяет диапазон дат, за который запрашивается история, и возвращает его конечную дату. Сегодняшний торговый
+     * день в историю Мосбиржи еще не попал, поэтому конечная дата ограничивается вчерашним днем. Обращений к бирже
+     * нет, поэтому проверять диапазон стоит до загрузки истории, чтобы отличать ошибку в запросе пользователя от
+     * ошибки биржи.
+     *
+     * @param fromDate начальная дата диапазона
+     * @param tillDate конечная дата диапазона
+     * @throws IllegalArgumentException если диапазон дат некорректный или длиннее MAX_RANGE_DAYS дней
+     */
+    public static LocalDate checkRange(LocalDate fromDate, LocalDate tillDate) {
+        LocalDate yesterday = LocalDate.now(MoexTradingCalendar.MOSCOW).minusDays(1);
+        LocalDate till = tillDate.isAfter(yesterday) ? yesterday : tillDate;
+        if (fromDate.isAfter(till)) {
+            throw new IllegalArgumentException("начальная дата должна быть не позже конечной и не позже вчерашнего дня");
+        }
+        if (ChronoUnit.DAYS.between(fromDate, till) > MAX_RANGE_DAYS) {
+            throw new IllegalArgumentException("диапазон дат не должен превышать " + MAX_RANGE_DAYS + " дней");
+        }
+        return till;
+    }
+
+    /**
+     * Возвращает итоги торгов данной валютной пары по дням в указанном диапазоне дат, отсортированные по дате по
+     * возрастанию. Цены пересчитаны на 1 ед. базовой валюты. Конечная дата диапазона ограничивается вчерашним днем
+     * (см. checkRange()).
+     *
+     * @param currencyPair валютная пара
+     * @param fromDate начальная дата диапазона
+     * @param tillDate конечная дата диапазона
+     * @throws IllegalArgumentException если диапазон дат некорректный или длиннее MAX_RANGE_DAYS дней
+     * @throws RuntimeException если историю не удалось получить с биржи или разобрать ее ответ
+     */
+    public static List<DailyQuote> getDailyQuotes(MoexCurrencyPair currencyPair, LocalDate fromDate, LocalDate tillDate) {
+        LocalDate till = checkRange(fromDate, tillDate);
+
+        // загружаем первую страницу, из нее узнаем общее количество строк и размер страницы
+        JsonReader.HistoryPage firstPage = loadPage(currencyPair, fromDate, till, 0);
+
+        // остальные страницы загружаем параллельно, запросы попадают в трассу вызывающего потока
+        List<CompletableFuture<JsonReader.HistoryPage>> nextPages = new ArrayList<>();
+        Span parentSpan = Tracer.currentSpan();
+        if (firstPage.pageSize() > 0) {
+            for (int start = firstPage.pageSize(); start < firstPage.total(); start += firstPage.pageSize()) {
+                final int pageStart = start;
+                nextPages.add(CompletableFuture.supplyAsync(() -> {
+                    try (Span span = Tracer.startSpan("loadHistoryPage", parentSpan)) {
+                        span.setAttribute("start", pageStart);
+                        return loadPage(currencyPair, fromDate, till, pageStart);
+                    }
+                }, pageLoader));
+            }
+        }
+
+        // собираем страницы в порядке их следования
+        List<DailyQuote> dailyQuotes = new ArrayList<>(firstPage.total());
+        firstPage.dailyQuotes().forEach(quote -> dailyQuotes.add(quote.dividedBy(currencyPair.getFaceValue())));
+        for (CompletableFuture<JsonReader.HistoryPage> nextPage : nextPages) {
+            nextPage.join().dailyQuotes().forEach(quote -> dailyQuotes.add(quote.dividedBy(currencyPair.getFaceValue())));
+        }
+        return dailyQuotes;
+    }
+
+    /**
+     * Форматирует итоги торгов в компактный текст для отправки сообщением: одна строка на торговый день.
+     */
+    public static String formatAsText(MoexCurrencyPair currencyPair, List<DailyQuote> dailyQuotes) {
+        StringBuilder messageBuilder = new StringBuilder(String.format("История торгов %s/%s (открытие / максимум / " +
+                "минимум / закрытие):\n", currencyPair.getFirstCurrencyCode(), currencyPair.getSecondCurrencyCode()));
+        for (DailyQuote quote : dailyQuotes) {
+            messageBuilder.append(String.format("\n%s: %s / %s / %s / %s", quote.tradeDate(),
+                    Utilities.formatDouble(quote.open()), Utilities.formatDouble(quote.high()),
+                    Utilities.formatDouble(quote.low()), Utilities.formatDouble(quote.close())));
+        }
+        return messageBuilder.toString();
+    }
+
+    /**
+     * Форматирует итоги торгов в CSV для отправки файлом. Десятичный разделитель - точка. Цены записываются со всеми
+     * знаками, которые опубликовала Мосбиржа, без округления (см. formatCsvPrice()).
+     */
+    public static String formatAsCsv(List<DailyQuote> dailyQuotes) {
+        StringBuilder csvBuilder = new StringBuilder("TRADEDATE,OPEN,HIGH,LOW,CLOSE\n");
+        for (DailyQuote quote : dailyQuotes) {
+            csvBuilder.append(quote.tradeDate())
+                    .append(',').append(formatCsvPrice(quote.open()))
+                    .append(',').append(formatCsvPrice(quote.high()))
+                    .append(',').append(formatCsvPrice(quote.low()))
+                    .append(',').append(formatCsvPrice(quote.close()))
+                    .append('\n');
+        }
+        return csvBuilder.toString();
+    }
+
+    // Записывает цену без экспоненты и лишних нулей. Мосбиржа публикует цены не больше чем с 8 значащими цифрами, а
+    // после пересчета на 1 ед. валюты (деления на номинал) в младших разрядах double появляется погрешность вида
+    // 0.19449999999999998, поэтому цена округляется до CSV_PRICE_PRECISION значащих цифр - так остаются ровно
+    // опубликованные знаки, например 0.1945 для KZT/RUB.
+    private static String formatCsvPrice(double price) {
+        return BigDecimal.valueOf(price).round(CSV_PRICE_PRECISION).stripTrailingZeros().toPlainString();
+    }
+
+    // загружает и парсит одну страницу истории торгов
+    private static JsonReader.HistoryPage loadPage(MoexCurrencyPair currencyPair, LocalDate fromDate, LocalDate tillDate,
+                                                   int start) {
+        String jsonResponse = HttpRequestFactory.newMoexHistoryPageRequest(currencyPair, fromDate, tillDate, start);
+        return JsonReader.parseHistoryPage(jsonResponse);
+    }
+}
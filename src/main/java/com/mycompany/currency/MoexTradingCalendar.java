@@ -0,0 +1,133 @@
+package com.mycompany.currency;
+
+import java.time.*;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Календарь торгов валютной секции Мосбиржи (режим CETS). Определяет, в какие моменты времени данные Мосбиржи о торгах
+ * могут изменяться, а в какие - гарантированно нет (выходные, праздники, ночь). Когда торги не идут, запрашивать
+ * данные у Мосбиржи бессмысленно - она каждый раз будет возвращать одни и те же котировки закрытия.
+ *
+ * Точный список нерабочих дней Мосбиржа публикует каждый год отдельно (с учетом переносов выходных), поэтому здесь
+ * заданы только ежегодные государственные праздники, а переносы можно дописать свойством moex.holidays в виде
+ * списка дат через запятую, например: moex.holidays=2024-04-29,2024-04-30 (см. setExtraHolidays()). Если какой-то нерабочий день
+ * в календарь не попал, это не страшно: класс CurrencyQuotes дополнительно отслеживает, меняется ли время
+ * обновления котировок UPDATETIME, и реже опрашивает биржу, если оно не меняется.
+ */
+public final class MoexTradingCalendar {
+
+    /**
+     * Часовой пояс Мосбиржи
+     */
+    public static final ZoneId MOSCOW = ZoneId.of("Europe/Moscow");
+
+    // Начало и конец интервала времени, в течение которого данные Мосбиржи о торгах могут меняться. Торги идут
+    // примерно с 07:00 до 19:00 мск, но данные обнуляются перед началом сессии (около 06:30), а котировки на
+    // бесплатном API приходят с задержкой 15 мин, поэтому интервал взят с запасом с обеих сторон.
+    private static final LocalTime DATA_UPDATES_START = LocalTime.of(6, 30);
+    private static final LocalTime DATA_UPDATES_END = LocalTime.of(19, 15);
+
+    // Время следующего дня, к которому Мосбиржа гарантированно публикует итоговую строку истории торгов (history) за
+    // торговый день. Обычно это происходит вечером или ночью, но до этого момента ответ за вчерашний день может быть
+    // еще неполным.
+    private static final LocalTime HISTORY_PUBLISHED_BY = LocalTime.of(10, 0);
+
+    // ежегодные праздники, в которые Мосбиржа не работает
+    private static final Set<MonthDay> ANNUAL_HOLIDAYS = Set.of(
+            MonthDay.of(Month.JANUARY, 1),
+            MonthDay.of(Month.JANUARY, 2),
+            MonthDay.of(Month.FEBRUARY, 23),
+            MonthDay.of(Month.MARCH, 8),
+            MonthDay.of(Month.MAY, 1),
+            MonthDay.of(Month.MAY, 9),
+            MonthDay.of(Month.JUNE, 12),
+            MonthDay.of(Month.NOVEMBER, 4));
+
+    // дополнительные нерабочие дни из свойства moex.holidays
+    private static volatile Set<LocalDate> extraHolidays = Set.of();
+
+    /**
+     * Запрещаем создавать экземпляры класса, так как он состоит только из статичных методов.
+     */
+    private MoexTradingCalendar() {}
+
+    /**
+     * Задает дополнительные нерабочие дни Мосбиржи (переносы выходных). Вызывается при запуске приложения.
+     *
+     * @param holidays даты через запятую, например "2024-04-29,2024-04-30" (свойство moex.holidays)
+     * @throws java.time.format.DateTimeParseException если какая-то дата записана неправильно
+     */
+    public static void setExtraHolidays(String holidays) {
+        extraHolidays = Arrays.stream(holidays.split(","))
+                .map(String::trim)
+                .filter(date -> !date.isEmpty())
+                .map(LocalDate::parse)
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    /**
+     * Возвращает true, если в указанный момент времени данные Мосбиржи о торгах могут меняться.
+     */
+    public static boolean isOpen(ZonedDateTime time) {
+        ZonedDateTime timeInMoscow = time.withZoneSameInstant(MOSCOW);
+        LocalTime localTime = timeInMoscow.toLocalTime();
+        return isTradingDay(timeInMoscow.toLocalDate())
+                && !localTime.isBefore(DATA_UPDATES_START)
+                && localTime.isBefore(DATA_UPDATES_END);
+    }
+
+    /**
+     * Возвращает ближайший момент времени, начиная с которого данные Мосбиржи о торгах снова начнут меняться.
+     * Если в указанный момент времени они уже могут меняться, возвращает этот же момент.
+     */
+    public static ZonedDateTime nextOpen(ZonedDateTime time) {
+        ZonedDateTime timeInMoscow = time.withZoneSameInstant(MOSCOW);
+        if (isOpen(timeInMoscow)) {
+            return timeInMoscow;
+        }
+
+        // если сегодня торги еще не начались, ближайшее открытие может быть сегодня, иначе ищем его начиная с завтра
+        LocalDate date = timeInMoscow.toLocalDate();
+        if (!timeInMoscow.toLocalTime().isBefore(DATA_UPDATES_START)) {
+            date = date.plusDays(1);
+        }
+        while (!isTradingDay(date)) {
+            date = date.plusDays(1);
+        }
+        return ZonedDateTime.of(date, DATA_UPDATES_START, MOSCOW);
+    }
+
+    /**
+     * Возвращает момент времени, после которого данные Мосбиржи о торгах за текущий торговый день перестанут
+     * меняться. Имеет смысл вызывать, только если isOpen(time) == true.
+     */
+    public static ZonedDateTime sessionEnd(ZonedDateTime time) {
+        return ZonedDateTime.of(time.withZoneSameInstant(MOSCOW).toLocalDate(), DATA_UPDATES_END, MOSCOW);
+    }
+
+    /**
+     * Возвращает последний торговый день, итоги которого Мосбиржа к указанному моменту времени уже опубликовала в
+     * истории торгов. Например, во вторник в 08:00 это пятница: итоги понедельника могут быть еще не опубликованы.
+     */
+    public static LocalDate lastPublishedTradingDay(ZonedDateTime time) {
+        ZonedDateTime timeInMoscow = time.withZoneSameInstant(MOSCOW);
+        // итоги торгового дня опубликованы к HISTORY_PUBLISHED_BY следующего дня
+        LocalDate date = timeInMoscow.toLocalDate().minusDays(
+                timeInMoscow.toLocalTime().isBefore(HISTORY_PUBLISHED_BY) ? 2 : 1);
+        while (!isTradingDay(date)) {
+            date = date.minusDays(1);
+        }
+        return date;
+    }
+
+    // возвращает true, если в указанную дату Мосбиржа работает
+    private static boolean isTradingDay(LocalDate date) {
+        DayOfWeek dayOfWeek = date.getDayOfWeek();
+        return dayOfWeek != DayOfWeek.SATURDAY
+                && dayOfWeek != DayOfWeek.SUNDAY
+                && !ANNUAL_HOLIDAYS.contains(MonthDay.from(date))
+                && !extraHolidays.contains(date);
+    }
+}
@@ -0,0 +1,23 @@
+package com.mycompany.currency;
+
+import java.time.Instant;
+import java.util.Map;
+
+/**
+ * Неизменяемый снимок котировок, полученных при очередном обновлении (см. CurrencyQuotes#getSnapshot()).
+ *
+ * @param version номер снимка, увеличивается на 1 при каждом обновлении котировок
+ * @param fiatQuotes котировки фиатных валют (Мосбиржа)
+ * @param cryptoQuotes котировки криптовалют
+ * @param quotesUpdateTime время последнего обновления котировок на Мосбирже в формате HH:mm
+ * @param relevantUntil момент времени, до которого котировки снимка считаются актуальными
+ * @param fiatMessage готовый текст сообщения с котировками фиатных валют
+ * @param cryptoMessage готовый текст сообщения с котировками криптовалют
+ */
+public record QuotesSnapshot(long version,
+                             Map<CurrencyPair, Double> fiatQuotes,
+                             Map<CurrencyPair, Double> cryptoQuotes,
+                             String quotesUpdateTime,
+                             Instant relevantUntil,
+                             String fiatMessage,
+                             String cryptoMessage) {}
@@ -0,0 +1,224 @@
+package com.mycompany.currency;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Файл с последним снимком котировок, по которому бот после перезапуска сразу отвечает пользователям, не дожидаясь
+ * опроса бирж (см. CurrencyQuotes). Файл маленький (около килобайта) и бинарный:
+ *
+ *   int     MAGIC
+ *   int     FORMAT_VERSION
+ *   int     длина данных
+ *   int     CRC32 данных
+ *   данные: long version, long relevantUntil (мс), long savedAt (мс), строка quotesUpdateTime,
+ *           строки fiatMessage и cryptoMessage, затем котировки фиатных валют и криптовалют -
+ *           int количество пар и для каждой пары строка с ее именем и double котировка.
+ *
+ * Строки записываются как int длина + байты в UTF-8, длина -1 означает null.
+ * Файл записывается во временный файл и атомарно переименовывается, поэтому при падении во время записи остается
+ * предыдущий снимок. При загрузке файл отображается в память (memory-mapped), строки копируются из него в массивы
+ * байт и декодируются из UTF-8.
+ * Файл, который не удалось прочитать (другой формат, испорченные данные, неизвестная валютная пара), игнорируется.
+ *
+ * В том же формате узел-лидер публикует снимки котировок для остальных узлов в кластерном режиме
+ * (см. com.mycompany.cluster), поэтому кодирование и декодирование доступны отдельно от работы с файлом.
+ */
+public final class QuotesSnapshotFile {
+
+    // "QSNP" - признак того, что это файл снимка котировок
+    private static final int MAGIC = 0x51534E50;
+
+    // версия формата, увеличивается при любом изменении формата файла
+    private static final int FORMAT_VERSION = 1;
+
+    // размер заголовка файла: MAGIC, FORMAT_VERSION, длина данных, CRC32
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+
+    /**
+     * Снимок котировок вместе с моментом его записи в файл.
+     *
+     * @param snapshot снимок котировок
+     * @param savedAt момент записи снимка в файл
+     */
+    public record StoredSnapshot(QuotesSnapshot snapshot, Instant savedAt) {}
+
+    /**
+     * Запрещаем создавать экземпляры класса, так как он состоит только из статичных методов.
+     */
+    private QuotesSnapshotFile() {}
+
+    /**
+     * Записывает снимок котировок в файл, заменяя предыдущий. Ошибки записи не пробрасываются: без файла бот просто
+     * после перезапуска будет ждать опроса бирж.
+     */
+    public static void save(Path file, QuotesSnapshot snapshot, Instant savedAt) {
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            Files.createDirectories(directory);
+            Path tempFile = Files.createTempFile(directory, "quotes-snapshot", ".tmp");
+            Files.write(tempFile, encode(snapshot, savedAt));
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Загружает снимок котировок из файла.
+     *
+     * @return снимок котировок или null, если файла нет или его не удалось прочитать
+     */
+    public static StoredSnapshot load(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (NoSuchFileException e) {
+            return null; // первый запуск - файла еще нет
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Кодирует снимок котировок в байты в формате файла.
+     */
+    public static byte[] encode(QuotesSnapshot snapshot, Instant savedAt) {
+        ByteBuffer data = ByteBuffer.allocate(4096);
+        data = putLong(data, snapshot.version());
+        data = putLong(data, snapshot.relevantUntil().toEpochMilli());
+        data = putLong(data, savedAt.toEpochMilli());
+        data = putString(data, snapshot.quotesUpdateTime());
+        data = putString(data, snapshot.fiatMessage());
+        data = putString(data, snapshot.cryptoMessage());
+        data = putQuotes(data, snapshot.fiatQuotes());
+        data = putQuotes(data, snapshot.cryptoQuotes());
+        data.flip();
+
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES)
+                .putInt(MAGIC)
+                .putInt(FORMAT_VERSION)
+                .putInt(data.remaining())
+                .putInt((int) crc.getValue())
+                .flip();
+        return ByteBuffer.allocate(header.remaining() + data.remaining()).put(header).put(data).array();
+    }
+
+    /**
+     * Декодирует снимок котировок из байтов в формате файла.
+     *
+     * @return снимок котировок или null, если байты не в формате файла или данные испорчены
+     */
+    public static StoredSnapshot decode(ByteBuffer buffer) {
+        try {
+            if (buffer.remaining() < HEADER_BYTES || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int length = buffer.getInt();
+            int expectedCrc = buffer.getInt();
+            if (length != buffer.remaining()) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buffer.duplicate());
+            if ((int) crc.getValue() != expectedCrc) {
+                return null;
+            }
+
+            long version = buffer.getLong();
+            Instant relevantUntil = Instant.ofEpochMilli(buffer.getLong());
+            Instant savedAt = Instant.ofEpochMilli(buffer.getLong());
+            String quotesUpdateTime = getString(buffer);
+            String fiatMessage = getString(buffer);
+            String cryptoMessage = getString(buffer);
+            Map<CurrencyPair, Double> fiatQuotes = getQuotes(buffer);
+            Map<CurrencyPair, Double> cryptoQuotes = getQuotes(buffer);
+            return new StoredSnapshot(new QuotesSnapshot(version, fiatQuotes, cryptoQuotes, quotesUpdateTime,
+                    relevantUntil, fiatMessage, cryptoMessage), savedAt);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Возвращает буфер, в котором осталось место еще хотя бы для bytes байт: либо тот же, либо новый, вдвое больший,
+    // с уже записанными данными. Снимок обычно занимает около килобайта, поэтому это почти никогда не нужно.
+    private static ByteBuffer ensureRemaining(ByteBuffer buffer, int bytes) {
+        if (buffer.remaining() >= bytes) {
+            return buffer;
+        }
+        ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(2 * buffer.capacity(), buffer.position() + bytes));
+        return newBuffer.put(buffer.flip());
+    }
+
+    private static ByteBuffer putLong(ByteBuffer buffer, long value) {
+        return ensureRemaining(buffer, Long.BYTES).putLong(value);
+    }
+
+    private static ByteBuffer putString(ByteBuffer buffer, String value) {
+        if (value == null) {
+            return ensureRemaining(buffer, Integer.BYTES).putInt(-1);
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        return ensureRemaining(buffer, Integer.BYTES + bytes.length).putInt(bytes.length).put(bytes);
+    }
+
+    private static ByteBuffer putQuotes(ByteBuffer buffer, Map<CurrencyPair, Double> quotes) {
+        buffer = ensureRemaining(buffer, Integer.BYTES).putInt(quotes.size());
+        for (Map.Entry<CurrencyPair, Double> entry : quotes.entrySet()) {
+            buffer = putString(buffer, ((Enum<?>) entry.getKey()).name());
+            buffer = ensureRemaining(buffer, Double.BYTES).putDouble(entry.getValue());
+        }
+        return buffer;
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // читает котировки, сохраняя порядок валютных пар
+    private static Map<CurrencyPair, Double> getQuotes(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        Map<CurrencyPair, Double> quotes = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            CurrencyPair currencyPair = currencyPairByName(getString(buffer));
+            quotes.put(currencyPair, buffer.getDouble());
+        }
+        return Collections.unmodifiableMap(quotes);
+    }
+
+    // Находит валютную пару по имени среди всех перечислений валютных пар. Если пары с таким именем нет (ее убрали
+    // из кода после записи файла), выбрасывает IllegalArgumentException, и файл игнорируется.
+    private static CurrencyPair currencyPairByName(String name) {
+        CurrencyPair[][] allPairs = {MoexCurrencyPair.values(), CalculatedQuoteCurrencyPair.values(),
+                BybitCryptocurrencyPair.values()};
+        for (CurrencyPair[] pairs : allPairs) {
+            for (CurrencyPair pair : pairs) {
+                if (((Enum<?>) pair).name().equals(name)) {
+                    return pair;
+                }
+            }
+        }
+        throw new IllegalArgumentException("неизвестная валютная пара " + name);
+    }
+}
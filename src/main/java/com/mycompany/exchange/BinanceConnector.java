@@ -0,0 +1,45 @@
+package com.mycompany.exchange;
+
+import com.google.gson.JsonParser;
+import com.mycompany.HttpRequestFactory;
+import com.mycompany.currency.CurrencyPair;
+import com.mycompany.currency.BybitCryptocurrencyPair;
+
+import java.util.Set;
+
+/**
+ * Коннектор к бирже Binance - резервный источник котировок криптовалютных пар. Тикеры криптовалютных пар на Binance
+ * совпадают с тикерами на Bybit, но торгуются там не все пары, поэтому список поддерживаемых пар задан явно.
+ * Пример ответа биржи: {"symbol":"BTCUSDT","price":"30000.01000000"}
+ */
+public class BinanceConnector implements ExchangeConnector {
+
+    // криптовалютные пары, которые торгуются на Binance
+    private static final Set<CurrencyPair> SUPPORTED_PAIRS = Set.of(
+            BybitCryptocurrencyPair.BTC_USDT,
+            BybitCryptocurrencyPair.ETH_USDT,
+            BybitCryptocurrencyPair.SOL_USDT);
+
+    @Override
+    public String getName() {
+        return "Binance";
+    }
+
+    @Override
+    public int getPriority() {
+        return 10;
+    }
+
+    @Override
+    public boolean supports(CurrencyPair currencyPair) {
+        return SUPPORTED_PAIRS.contains(currencyPair);
+    }
+
+    @Override
+    public ExchangeQuote fetchQuote(CurrencyPair currencyPair) {
+        String jsonResponse = HttpRequestFactory.newGetRequest(
+                "https://api.binance.com/api/v3/ticker/price?symbol=" + currencyPair.getTicker());
+        String priceStr = JsonParser.parseString(jsonResponse).getAsJsonObject().get("price").getAsString();
+        return new ExchangeQuote(Double.parseDouble(priceStr), null);
+    }
+}
@@ -0,0 +1,43 @@
+package com.mycompany.exchange;
+
+import com.mycompany.HttpRequestFactory;
+import com.mycompany.currency.BybitCryptocurrencyPair;
+import com.mycompany.currency.CurrencyPair;
+import com.mycompany.json.JsonReader;
+
+import java.util.Set;
+
+/**
+ * Коннектор к бирже Bybit - основной источник котировок криптовалютных пар. Котировка - цена последней сделки
+ * (lastPrice) на спотовом рынке. Пример ответа биржи: src/example/bybit_wlkn_usdt_marketdata.json.
+ */
+public class BybitConnector implements ExchangeConnector {
+
+    // адрес данных о торгах на спотовом рынке, к нему добавляется тикер пары
+    private static final String MARKET_DATA_URL = "https://api.bybit.com/v5/market/tickers?category=spot&symbol=";
+
+    // криптовалютные пары, которые торгуются на Bybit
+    private static final Set<CurrencyPair> SUPPORTED_PAIRS = Set.of(BybitCryptocurrencyPair.values());
+
+    @Override
+    public String getName() {
+        return "Bybit";
+    }
+
+    @Override
+    public int getPriority() {
+        return 0;
+    }
+
+    @Override
+    public boolean supports(CurrencyPair currencyPair) {
+        return SUPPORTED_PAIRS.contains(currencyPair);
+    }
+
+    @Override
+    public ExchangeQuote fetchQuote(CurrencyPair currencyPair) {
+        String jsonResponse = HttpRequestFactory.newGetRequest(MARKET_DATA_URL + currencyPair.getTicker());
+        String lastPrice = JsonReader.parseBybitMarketDataToMap(jsonResponse).get("lastPrice");
+        return new ExchangeQuote(Double.parseDouble(lastPrice), null);
+    }
+}
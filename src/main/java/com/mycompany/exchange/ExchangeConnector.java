@@ -0,0 +1,39 @@
+package com.mycompany.exchange;
+
+import com.mycompany.currency.CurrencyPair;
+
+/**
+ * Коннектор к бирже - источник котировок валютных пар. Коннекторы подключаются через стандартный механизм Java SPI
+ * (java.util.ServiceLoader): чтобы добавить новый источник котировок, достаточно реализовать этот интерфейс и указать
+ * имя класса в файле META-INF/services/com.mycompany.exchange.ExchangeConnector, ничего не меняя в остальном коде.
+ *
+ * Одну и ту же валютную пару могут поддерживать несколько коннекторов. В этом случае основным источником считается
+ * коннектор с наименьшим приоритетом, а остальные используются как резервные, см. ExchangeConnectors.
+ * Реализации должны иметь публичный конструктор без параметров и быть потокобезопасными.
+ */
+public interface ExchangeConnector {
+
+    /**
+     * Возвращает название биржи
+     */
+    String getName();
+
+    /**
+     * Возвращает приоритет коннектора: чем меньше значение, тем приоритетнее коннектор
+     */
+    int getPriority();
+
+    /**
+     * Возвращает true, если через данный коннектор можно получить котировку данной валютной пары
+     */
+    boolean supports(CurrencyPair currencyPair);
+
+    /**
+     * Запрашивает у биржи и возвращает котировку данной валютной пары вместе со временем ее обновления на бирже.
+     * Запросы к бирже (их URL и разбор ответов) формирует сам коннектор, отправляя их через
+     * HttpRequestFactory#newGetRequest, а валютная пара хранит только описание пары (тикер, коды валют).
+     *
+     * @throws RuntimeException если котировку получить не удалось
+     */
+    ExchangeQuote fetchQuote(CurrencyPair currencyPair);
+}
@@ -0,0 +1,213 @@
+package com.mycompany.exchange;
+
+import com.mycompany.HttpRequestFactory;
+import com.mycompany.currency.CurrencyPair;
+import com.mycompany.trace.Span;
+import com.mycompany.trace.Tracer;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Реестр коннекторов к биржам, загружаемых через ServiceLoader (см. ExchangeConnector), и точка входа для получения
+ * котировок валютных пар.
+ *
+ * Если валютную пару поддерживают несколько коннекторов, отправляется "хеджированный" запрос: сначала запрос уходит
+ * к основной бирже, и если она не ответила за время, в которое обычно укладываются 95% ее ответов (p95), такой же
+ * запрос отправляется к резервной бирже. Используется тот ответ, который придет первым. Если основная биржа ответила
+ * ошибкой, запрос к резервной бирже отправляется сразу. Так медленный или недоступный источник не задерживает
+ * получение котировок. Ответ хотя бы одной из бирж ждем не дольше HEDGED_REQUEST_TIMEOUT_MILLIS, а http-запрос,
+ * ответ на который больше не нужен, прерывается, чтобы не занимать соединение с биржей.
+ */
+public final class ExchangeConnectors {
+
+    // Задержка перед отправкой запроса к резервной бирже, пока по основной бирже не накопилось достаточно данных для
+    // расчета p95. Задается свойством exchange.hedge.default-delay-ms (см. setDefaultHedgeDelayMillis()).
+    private static volatile long defaultHedgeDelayMillis = 1000;
+
+    // Сколько после отправки запроса к резервной бирже ждем ответа хотя бы одной из бирж. Сами http-запросы тоже
+    // ограничены таймаутами (см. HttpRequestFactory), но зависший коннектор не должен задерживать котировки дольше.
+    private static final long HEDGED_REQUEST_TIMEOUT_MILLIS = 15_000;
+
+    // длительности запросов к каждой бирже
+    private static final Map<ExchangeConnector, LatencyTracker> latencies = new ConcurrentHashMap<>();
+
+    // Потоки для параллельных запросов к биржам. Признак daemon позволяет им не мешать завершению приложения.
+    private static final ExecutorService requestExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "exchange-connector");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Запрещаем создавать экземпляры класса, так как он состоит только из статичных методов.
+     */
+    private ExchangeConnectors() {}
+
+    /**
+     * Задает задержку перед отправкой запроса к резервной бирже, пока по основной бирже не накопилось достаточно
+     * данных для расчета p95. Вызывается при запуске приложения.
+     *
+     * @param delayMillis задержка в мс (свойство exchange.hedge.default-delay-ms)
+     */
+    public static void setDefaultHedgeDelayMillis(long delayMillis) {
+        defaultHedgeDelayMillis = delayMillis;
+    }
+
+    // Коннекторы загружаются при первом обращении к ним, а не при загрузке класса (idiom "lazy holder")
+    private static class Holder {
+        private static final List<ExchangeConnector> CONNECTORS = ServiceLoader
+                .load(ExchangeConnector.class, ExchangeConnector.class.getClassLoader())
+                .stream()
+                .map(ServiceLoader.Provider::get)
+                .sorted(Comparator.comparingInt(ExchangeConnector::getPriority))
+                .toList();
+    }
+
+    /**
+     * Возвращает все загруженные коннекторы, упорядоченные по приоритету
+     */
+    public static List<ExchangeConnector> getConnectors() {
+        return Holder.CONNECTORS;
+    }
+
+    /**
+     * Котировка валютной пары вместе с биржей, которая ее прислала.
+     *
+     * @param quote котировка
+     * @param exchangeName название биржи (см. ExchangeConnector#getName)
+     * @param updateTime время обновления котировки на бирже по мск в формате HH:mm или null, если биржа его не
+     *                   сообщает (см. ExchangeQuote)
+     */
+    public record SourcedQuote(double quote, String exchangeName, String updateTime) {}
+
+    /**
+     * Возвращает котировку данной валютной пары вместе с биржей, которая ее прислала. Если пару поддерживают
+     * несколько коннекторов, отправляет хеджированный запрос к двум самым приоритетным из них, и котировку может
+     * прислать и резервная биржа.
+     *
+     * @throws IllegalArgumentException если пару не поддерживает ни один коннектор
+     */
+    public static SourcedQuote fetchSourcedQuote(CurrencyPair currencyPair) {
+        List<ExchangeConnector> connectors = getConnectors().stream()
+                .filter(connector -> connector.supports(currencyPair))
+                .toList();
+
+        if (connectors.isEmpty()) {
+            throw new IllegalArgumentException("котировку пары " + currencyPair + " не получить ни у одной биржи");
+        } else if (connectors.size() == 1) {
+            return fetchQuoteAndRecordLatency(connectors.get(0), currencyPair, Tracer.currentSpan());
+        } else {
+            return fetchHedgedQuote(connectors.get(0), connectors.get(1), currencyPair);
+        }
+    }
+
+    // отправляет хеджированный запрос: к резервной бирже - только если основная не ответила за p95 или ответила ошибкой
+    // Исключение CompletionException (в том числе с TimeoutException, если ни одна биржа не ответила вовремя)
+    // пробрасывается вызывающему коду как RuntimeException.
+    private static SourcedQuote fetchHedgedQuote(ExchangeConnector primary, ExchangeConnector backup,
+                                                 CurrencyPair currencyPair) {
+        QuoteRequest primaryQuote = fetchQuoteAsync(primary, currencyPair);
+        long hedgeDelayMillis = latencyOf(primary).p95Millis(defaultHedgeDelayMillis);
+        try {
+            return primaryQuote.future().get(hedgeDelayMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // основная биржа не уложилась в p95 - отправляем запрос к резервной и ждем первый успешный ответ
+            QuoteRequest backupQuote = fetchQuoteAsync(backup, currencyPair);
+            try {
+                return firstSuccessful(primaryQuote.future(), backupQuote.future())
+                        .orTimeout(HEDGED_REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                        .join();
+            } finally {
+                // прерываем проигравший запрос (завершенный запрос cancel() не трогает)
+                primaryQuote.cancel();
+                backupQuote.cancel();
+            }
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+            QuoteRequest backupQuote = fetchQuoteAsync(backup, currencyPair);
+            try {
+                return backupQuote.future().orTimeout(HEDGED_REQUEST_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).join();
+            } finally {
+                backupQuote.cancel();
+            }
+        } catch (InterruptedException e) {
+            primaryQuote.cancel();
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("поток прерван во время запроса котировки " + currencyPair, e);
+        }
+    }
+
+    /**
+     * Запрос котировки, выполняемый в отдельном потоке, вместе с возможностью прервать его http-запросы.
+     *
+     * @param future результат запроса
+     * @param abortHandle возможность прервать http-запросы коннектора
+     */
+    private record QuoteRequest(CompletableFuture<SourcedQuote> future, HttpRequestFactory.AbortHandle abortHandle) {
+
+        // Отменяет запрос, если он еще не завершен. Отмена CompletableFuture не останавливает уже отправленный
+        // http-запрос, поэтому он прерывается отдельно - иначе занимал бы соединение с биржей до таймаута.
+        void cancel() {
+            if (!future.isDone()) {
+                future.cancel(false);
+                abortHandle.abort();
+            }
+        }
+    }
+
+    // асинхронно запрашивает котировку у биржи, запрос попадает в трассу вызывающего потока
+    private static QuoteRequest fetchQuoteAsync(ExchangeConnector connector, CurrencyPair currencyPair) {
+        Span parentSpan = Tracer.currentSpan();
+        HttpRequestFactory.AbortHandle abortHandle = new HttpRequestFactory.AbortHandle();
+        CompletableFuture<SourcedQuote> future = CompletableFuture.supplyAsync(
+                () -> HttpRequestFactory.sendAbortable(abortHandle,
+                        () -> fetchQuoteAndRecordLatency(connector, currencyPair, parentSpan)),
+                requestExecutor);
+        return new QuoteRequest(future, abortHandle);
+    }
+
+    // запрашивает котировку у биржи и запоминает длительность запроса, если он прошел успешно
+    private static SourcedQuote fetchQuoteAndRecordLatency(ExchangeConnector connector, CurrencyPair currencyPair,
+                                                           Span parentSpan) {
+        try (Span span = Tracer.startSpan("fetchQuote", parentSpan)) {
+            span.setAttribute("exchange", connector.getName()).setAttribute("currency_pair", currencyPair.toString());
+            long startNanos = System.nanoTime();
+            try {
+                ExchangeQuote quote = connector.fetchQuote(currencyPair);
+                latencyOf(connector).record(System.nanoTime() - startNanos);
+                return new SourcedQuote(quote.quote(), connector.getName(), quote.updateTime());
+            } catch (RuntimeException e) {
+                span.recordError(e);
+                throw e;
+            }
+        }
+    }
+
+    // возвращает хранилище длительностей запросов к данной бирже
+    private static LatencyTracker latencyOf(ExchangeConnector connector) {
+        return latencies.computeIfAbsent(connector, key -> new LatencyTracker());
+    }
+
+    // Возвращает CompletableFuture, который завершится первым успешным результатом из переданных, а если все они
+    // завершатся ошибкой - ошибкой последнего из них.
+    @SafeVarargs
+    private static <T> CompletableFuture<T> firstSuccessful(CompletableFuture<T>... futures) {
+        CompletableFuture<T> first = new CompletableFuture<>();
+        AtomicInteger remaining = new AtomicInteger(futures.length);
+        for (CompletableFuture<T> future : futures) {
+            future.whenComplete((result, exception) -> {
+                if (exception == null) {
+                    first.complete(result);
+                } else if (remaining.decrementAndGet() == 0) {
+                    first.completeExceptionally(exception);
+                }
+            });
+        }
+        return first;
+    }
+}
@@ -0,0 +1,10 @@
+package com.mycompany.exchange;
+
+/**
+ * Котировка валютной пары, полученная коннектором у биржи (см. ExchangeConnector#fetchQuote).
+ *
+ * @param quote котировка в пересчете на 1 ед. базовой (первой из двух) валюты
+ * @param updateTime время последнего обновления котировки на бирже по мск в формате HH:mm или null, если биржа его
+ *                   не сообщает (например, котировки криптовалют приходят в реальном времени)
+ */
+public record ExchangeQuote(double quote, String updateTime) {}
@@ -0,0 +1,43 @@
+package com.mycompany.exchange;
+
+import java.util.Arrays;
+
+/**
+ * Хранит длительности последних успешных запросов к одной бирже и считает по ним 95-й перцентиль (p95).
+ * Хранятся только последние SAMPLES_CAPACITY значений (кольцевой буфер), поэтому p95 отражает текущее состояние
+ * биржи, а не всю историю запросов.
+ */
+class LatencyTracker {
+
+    // количество хранимых длительностей запросов
+    private static final int SAMPLES_CAPACITY = 128;
+
+    // минимальное количество длительностей, начиная с которого p95 считается достоверным
+    private static final int MIN_SAMPLES = 20;
+
+    private final long[] samplesNanos = new long[SAMPLES_CAPACITY];
+    private int samplesCount; // сколько элементов буфера заполнено
+    private int nextIndex; // куда записать следующую длительность
+
+    /**
+     * Добавляет длительность успешного запроса
+     */
+    synchronized void record(long durationNanos) {
+        samplesNanos[nextIndex] = durationNanos;
+        nextIndex = (nextIndex + 1) % SAMPLES_CAPACITY;
+        samplesCount = Math.min(samplesCount + 1, SAMPLES_CAPACITY);
+    }
+
+    /**
+     * Возвращает 95-й перцентиль длительности запросов в мс или defaultMillis, если запросов было слишком мало
+     */
+    synchronized long p95Millis(long defaultMillis) {
+        if (samplesCount < MIN_SAMPLES) {
+            return defaultMillis;
+        }
+        long[] sorted = Arrays.copyOf(samplesNanos, samplesCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(0.95 * samplesCount) - 1;
+        return sorted[index] / 1_000_000;
+    }
+}
@@ -0,0 +1,86 @@
+package com.mycompany.exchange;
+
+import com.mycompany.HttpRequestFactory;
+import com.mycompany.currency.CurrencyPair;
+import com.mycompany.currency.MoexCurrencyPair;
+import com.mycompany.currency.MoexTradingCalendar;
+import com.mycompany.json.JsonReader;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Коннектор к Московской бирже (Мосбиржа, MOEX) через ее API ISS. Котировка - цена последней сделки за текущую или
+ * последнюю (если текущая уже закончилась) торговую сессию, а если сделок в ней не было - цена закрытия предыдущей
+ * торговой сессии. Вместе с котировкой возвращается время ее обновления на бирже (свойство UPDATETIME).
+ * Примеры ответов биржи: src/example/moex_usd_rub_marketdata.json и src/example/moex_history_data.json.
+ */
+public class MoexConnector implements ExchangeConnector {
+
+    // адрес данных о торгах валютными парами в режиме CETS, к нему добавляется тикер пары
+    private static final String MARKET_DATA_URL =
+            "https://iss.moex.com/iss/engines/currency/markets/selt/boards/CETS/securities/";
+
+    // адрес истории торгов валютными парами в режиме CETS, к нему добавляется тикер пары
+    private static final String HISTORY_URL =
+            "https://iss.moex.com/iss/history/engines/currency/markets/selt/boards/CETS/securities/";
+
+    // Сколько последних дней запрашивается, чтобы найти предыдущую торговую сессию. Бывают дни (выходные и праздники,
+    // в том числе длинные), когда биржа не работает, но в любые 7 дней наверняка попадет хотя бы 1 рабочий день.
+    private static final int PREVIOUS_SESSION_SEARCH_DAYS = 7;
+
+    private static final DateTimeFormatter ISS_TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+    private static final DateTimeFormatter UPDATE_TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm");
+
+    // валютные пары, которые торгуются на Мосбирже
+    private static final Set<CurrencyPair> SUPPORTED_PAIRS = Set.of(MoexCurrencyPair.values());
+
+    @Override
+    public String getName() {
+        return "MOEX";
+    }
+
+    @Override
+    public int getPriority() {
+        return 0;
+    }
+
+    @Override
+    public boolean supports(CurrencyPair currencyPair) {
+        return SUPPORTED_PAIRS.contains(currencyPair);
+    }
+
+    @Override
+    public ExchangeQuote fetchQuote(CurrencyPair currencyPair) {
+        // Курс на Мосбирже указывается за faceValue ед. валюты (например, за 100 KZT), поэтому делим его на
+        // faceValue. Другие пары сюда не попадают, см. supports().
+        int faceValue = ((MoexCurrencyPair) currencyPair).getFaceValue();
+
+        Map<String, String> marketData = JsonReader.parseLastTradingDayDataToMap(HttpRequestFactory.newGetRequest(
+                MARKET_DATA_URL + currencyPair.getTicker() + ".json?iss.meta=off&iss.only=marketdata"));
+        String lastPrice = marketData.get("LAST");
+        // цену закрытия предыдущей сессии запрашиваем, только если цены последней сделки еще нет
+        double price = lastPrice != null ? Double.parseDouble(lastPrice) : fetchPreviousSessionClosePrice(currencyPair);
+        return new ExchangeQuote(price / faceValue, formatUpdateTime(marketData.get("UPDATETIME")));
+    }
+
+    // запрашивает цену закрытия (CLOSE) предыдущей торговой сессии
+    private static double fetchPreviousSessionClosePrice(CurrencyPair currencyPair) {
+        LocalDate yesterday = LocalDate.now(MoexTradingCalendar.MOSCOW).minusDays(1);
+        LocalDate fromDate = yesterday.minusDays(PREVIOUS_SESSION_SEARCH_DAYS - 1);
+        // сортировка по убыванию даты - первая строка ответа относится к предыдущей торговой сессии
+        String jsonResponse = HttpRequestFactory.newGetRequest(HISTORY_URL + currencyPair.getTicker() +
+                ".json?iss.meta=off&from=" + fromDate + "&till=" + yesterday + "&sort_order=desc", fromDate, yesterday);
+        return Double.parseDouble(JsonReader.parsePreviousDayDataToMap(jsonResponse).get("CLOSE"));
+    }
+
+    // Переводит UPDATETIME из формата ответа биржи "HH:mm:ss" в "HH:mm". Во время торгов это время, как правило,
+    // отстает от фактического примерно на 15 мин - таково ограничение бесплатного API Мосбиржи, а после окончания
+    // торговой сессии это время ее окончания.
+    private static String formatUpdateTime(String issTime) {
+        return issTime != null ? UPDATE_TIME_FORMAT.format(LocalTime.parse(issTime, ISS_TIME_FORMAT)) : null;
+    }
+}
@@ -5,9 +5,15 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonToken;
 import com.mycompany.Utilities;
+import com.mycompany.currency.DailyQuote;
 
+import java.io.IOException;
+import java.io.StringReader;
 import java.lang.reflect.Type;
+import java.time.LocalDate;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -95,4 +101,101 @@ public class JsonReader {
 
         return marketData;
     }
+
+    /**
+     * Парсит json-ответ Мосбиржи с одной страницей истории торгов (см. HttpRequestFactory#newMoexHistoryPageRequest).
+     * Ответ имеет тот же формат, что и в файле src/example/moex_history_data.json, но содержит только колонки TRADEDATE,
+     * OPEN, HIGH, LOW, CLOSE и дополнительный блок "history.cursor" с общим количеством строк и размером страницы.
+     * В отличие от остальных методов класса, ответ не разбирается целиком в дерево JsonObject, а читается потоково,
+     * строка за строкой, так как страниц истории за длинный период может быть много. Мосбиржа всегда отдает массив
+     * "columns" раньше массива "data", поэтому к моменту чтения строк названия колонок уже известны.
+     * Торговые дни без цены закрытия пропускаются.
+     * @param jsonResponse json-ответ Мосбиржи со страницей истории торгов
+     */
+    public static HistoryPage parseHistoryPage(String jsonResponse) {
+        List<DailyQuote> dailyQuotes = new ArrayList<>();
+        int total = 0;
+        int pageSize = 0;
+
+        try (var reader = new com.google.gson.stream.JsonReader(new StringReader(jsonResponse))) {
+            reader.beginObject(); // корневой объект
+            while (reader.hasNext()) {
+                String blockName = reader.nextName(); // "history" или "history.cursor"
+                List<String> columns = new ArrayList<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String propertyName = reader.nextName();
+                    if (propertyName.equals("columns")) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            columns.add(reader.nextString());
+                        }
+                        reader.endArray();
+                    } else if (propertyName.equals("data")) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            Map<String, String> row = Utilities.zipToMap(columns, readRow(reader));
+                            if (blockName.equals("history") && row.get("CLOSE") != null) {
+                                dailyQuotes.add(toDailyQuote(row));
+                            } else if (blockName.equals("history.cursor")) {
+                                total = Integer.parseInt(row.get("TOTAL"));
+                                pageSize = Integer.parseInt(row.get("PAGESIZE"));
+                            }
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+            reader.endObject();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("некорректный json-ответ Мосбиржи", e);
+        }
+
+        return new HistoryPage(dailyQuotes, total, pageSize);
+    }
+
+    // читает одну строку массива "data" (массив значений, в том числе null) в List<String>
+    private static List<String> readRow(com.google.gson.stream.JsonReader reader) throws IOException {
+        List<String> values = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                values.add(null);
+            } else {
+                values.add(reader.nextString()); // числа тоже читаем как строки
+            }
+        }
+        reader.endArray();
+        return values;
+    }
+
+    // Создает DailyQuote из строки истории торгов. В дни с единственной сделкой или без сделок Мосбиржа может не
+    // прислать цены открытия, максимальную и минимальную - в этом случае вместо них берем цену закрытия.
+    private static DailyQuote toDailyQuote(Map<String, String> row) {
+        double close = Double.parseDouble(row.get("CLOSE"));
+        return new DailyQuote(
+                LocalDate.parse(row.get("TRADEDATE")),
+                parseDoubleOrDefault(row.get("OPEN"), close),
+                parseDoubleOrDefault(row.get("HIGH"), close),
+                parseDoubleOrDefault(row.get("LOW"), close),
+                close);
+    }
+
+    // парсит строку в double, а если строка равна null - возвращает значение по умолчанию
+    private static double parseDoubleOrDefault(String value, double defaultValue) {
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    /**
+     * Одна страница истории торгов Мосбиржи.
+     *
+     * @param dailyQuotes итоги торгов по дням, содержащиеся на этой странице
+     * @param total общее количество строк истории торгов в запрошенном диапазоне дат (по всем страницам)
+     * @param pageSize максимальное количество строк на одной странице
+     */
+    public record HistoryPage(List<DailyQuote> dailyQuotes, int total, int pageSize) {}
 }
\ No newline at end of file
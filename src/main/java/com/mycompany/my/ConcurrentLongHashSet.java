@@ -0,0 +1,218 @@
+package com.mycompany.my;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Моя замена ConcurrentHashMap.newKeySet() для хранения множества чисел типа long, например chatId пользователей.
+ *
+ * Что мне не нравится в оригинальной реализации: каждый элемент хранится как объект Long в отдельном узле таблицы.
+ * На 64-битной JVM это около 16 байт на Long, 32 байта на узел и еще 4-8 байт на ссылку в таблице - то есть больше
+ * 50 байт на одно 8-байтовое число. При нескольких миллионах пользователей это сотни мегабайт.
+ *
+ * Здесь числа хранятся прямо в массивах long[] (хэш-таблицы с открытой адресацией и линейным пробированием),
+ * заполненных не более чем наполовину, - от 16 до 32 байт на элемент. Чтобы потоки меньше мешали друг другу,
+ * множество разбито на SHARDS_COUNT независимых частей (шардов), каждая со своей блокировкой.
+ *
+ * Обход элементов (forEach) идет по снимкам шардов: массив шарда копируется под блокировкой, а обходится уже без нее,
+ * поэтому долгая обработка элементов (например, рассылка сообщений) не блокирует добавление и удаление элементов.
+ */
+public class ConcurrentLongHashSet {
+
+    // количество шардов (степень двойки)
+    private static final int SHARDS_COUNT = 16;
+
+    // начальная емкость таблицы каждого шарда (степень двойки)
+    private static final int INITIAL_SHARD_CAPACITY = 64;
+
+    private final Shard[] shards = new Shard[SHARDS_COUNT];
+
+    public ConcurrentLongHashSet() {
+        for (int i = 0; i < SHARDS_COUNT; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    /**
+     * Добавляет число в множество.
+     *
+     * @return true, если такого числа в множестве еще не было
+     */
+    public boolean add(long value) {
+        int hash = hash(value);
+        return shardFor(hash).add(value, hash);
+    }
+
+    /**
+     * Удаляет число из множества.
+     *
+     * @return true, если такое число было в множестве
+     */
+    public boolean remove(long value) {
+        int hash = hash(value);
+        return shardFor(hash).remove(value, hash);
+    }
+
+    /**
+     * Возвращает true, если число есть в множестве.
+     */
+    public boolean contains(long value) {
+        int hash = hash(value);
+        return shardFor(hash).contains(value, hash);
+    }
+
+    /**
+     * Возвращает количество чисел в множестве.
+     */
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    /**
+     * Выполняет действие для каждого числа множества. Каждый шард обходится по своему снимку, сделанному в момент
+     * начала его обхода, поэтому изменения множества во время обхода не приводят к исключениям, но могут быть
+     * не видны в обходе.
+     */
+    public void forEach(LongConsumer action) {
+        for (Shard shard : shards) {
+            shard.snapshot().forEach(action);
+        }
+    }
+
+    // выбирает шард по старшим битам хэша (младшие биты используются для выбора ячейки внутри шарда)
+    private Shard shardFor(int hash) {
+        return shards[hash >>> (Integer.SIZE - Integer.numberOfTrailingZeros(SHARDS_COUNT))];
+    }
+
+    // перемешивает биты числа, чтобы последовательные id равномерно распределялись по шардам и ячейкам
+    private static int hash(long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+    /**
+     * Шард множества - хэш-таблица с открытой адресацией. Пустая ячейка обозначается нулем, а сам ноль, если он
+     * есть в множестве, хранится отдельным флагом.
+     */
+    private static class Shard {
+
+        private long[] table = new long[INITIAL_SHARD_CAPACITY];
+        private int size; // количество ненулевых элементов в таблице
+        private boolean containsZero;
+
+        synchronized boolean add(long value, int hash) {
+            if (value == 0) {
+                boolean added = !containsZero;
+                containsZero = true;
+                return added;
+            }
+
+            int index = indexOf(table, value, hash);
+            if (table[index] == value) {
+                return false;
+            }
+            table[index] = value;
+            size++;
+            if (2 * size > table.length) { // заполнено больше половины - увеличиваем таблицу вдвое
+                grow();
+            }
+            return true;
+        }
+
+        synchronized boolean remove(long value, int hash) {
+            if (value == 0) {
+                boolean removed = containsZero;
+                containsZero = false;
+                return removed;
+            }
+
+            int index = indexOf(table, value, hash);
+            if (table[index] != value) {
+                return false;
+            }
+
+            // Удаление со сдвигом: элементы, идущие за удаленным в той же цепочке пробирования, сдвигаются на его
+            // место, если их "идеальная" ячейка не лежит между освободившейся ячейкой и их текущей. Так в таблице не
+            // остается пустых ячеек, разрывающих цепочки, и не нужны специальные метки удаленных элементов.
+            int mask = table.length - 1;
+            int free = index;
+            int next = (free + 1) & mask;
+            while (table[next] != 0) {
+                int ideal = hash(table[next]) & mask;
+                boolean idealBetweenFreeAndNext = free <= next
+                        ? free < ideal && ideal <= next
+                        : free < ideal || ideal <= next;
+                if (!idealBetweenFreeAndNext) {
+                    table[free] = table[next];
+                    free = next;
+                }
+                next = (next + 1) & mask;
+            }
+            table[free] = 0;
+            size--;
+            return true;
+        }
+
+        synchronized boolean contains(long value, int hash) {
+            if (value == 0) {
+                return containsZero;
+            }
+            return table[indexOf(table, value, hash)] == value;
+        }
+
+        synchronized int size() {
+            return containsZero ? size + 1 : size;
+        }
+
+        // возвращает копию шарда, которую можно обходить без блокировки
+        synchronized ShardSnapshot snapshot() {
+            return new ShardSnapshot(table.clone(), containsZero);
+        }
+
+        // увеличивает таблицу вдвое и заново раскладывает по ней элементы
+        private void grow() {
+            long[] newTable = new long[table.length * 2];
+            for (long value : table) {
+                if (value != 0) {
+                    newTable[indexOf(newTable, value, hash(value))] = value;
+                }
+            }
+            table = newTable;
+        }
+
+        // возвращает индекс ячейки с данным числом или индекс пустой ячейки, в которую его нужно положить
+        private static int indexOf(long[] table, long value, int hash) {
+            int mask = table.length - 1;
+            int index = hash & mask;
+            while (table[index] != 0 && table[index] != value) {
+                index = (index + 1) & mask;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Снимок шарда для обхода без блокировки.
+     */
+    private record ShardSnapshot(long[] table, boolean containsZero) {
+
+        void forEach(LongConsumer action) {
+            if (containsZero) {
+                action.accept(0);
+            }
+            for (long value : table) {
+                if (value != 0) {
+                    action.accept(value);
+                }
+            }
+        }
+    }
+}
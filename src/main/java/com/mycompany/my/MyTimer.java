@@ -68,6 +68,14 @@ public class MyTimer {
         schedule(myTimerTask, now, period, periodUnit);
     }
 
+    /**
+     * Отменяет все запланированные задачи и завершает поток таймера.
+     * Заменяет метод Timer#cancel().
+     */
+    public void cancel() {
+        timer.cancel();
+    }
+
     // конвертирует MyTimerTask в TimerTask
     private TimerTask convert(MyTimerTask taskToDo) {
         return new TimerTask() {
@@ -0,0 +1,107 @@
+package com.mycompany.trace;
+
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Отрезок трассы (span) - одна операция внутри обработки запроса, например http-запрос к бирже или отправка
+ * сообщения. Отрезки образуют дерево: у каждого, кроме корневого, есть родитель. Все отрезки одного дерева имеют
+ * общий traceId.
+ *
+ * Создается методами Tracer#startSpan и завершается методом close(), поэтому удобно использовать его в
+ * try-with-resources. Пока отрезок не завершен, он считается текущим для потока, в котором создан, и все отрезки,
+ * создаваемые в этом потоке, становятся его дочерними. Завершать отрезок нужно в том же потоке.
+ *
+ * Корневой отрезок может ссылаться (link) на отрезок другой трассы - так связывается операция, выполняемая позже в
+ * другом потоке (например, отправка сообщения из очереди), с трассой, в которой она была запланирована.
+ */
+public final class Span implements AutoCloseable {
+
+    @Getter private final String traceId;
+    @Getter private final String spanId;
+    @Getter private final String parentSpanId; // null у корневого отрезка
+    @Getter private final String name;
+    @Getter private final String linkedTraceId; // трасса отрезка, на который ссылается этот, или null
+    @Getter private final String linkedSpanId;
+    @Getter private final long startEpochNanos; // время начала от 1970-01-01 в нс
+    private final long startNanos; // System.nanoTime() в момент начала, для точного измерения длительности
+    private final Span previousCurrentSpan; // отрезок, который был текущим для потока до создания этого
+    private final boolean standalone; // корневой отрезок трассы, не попавшей в выборку заранее (см. Tracer)
+    private final Map<String, Object> attributes = Collections.synchronizedMap(new LinkedHashMap<>());
+    @Getter private volatile long durationNanos = -1; // -1 - отрезок еще не завершен
+    @Getter private volatile boolean error;
+
+    Span(String traceId, String spanId, String parentSpanId, String name, Span linkedSpan, Span previousCurrentSpan) {
+        this(traceId, spanId, parentSpanId, name, linkedSpan, previousCurrentSpan, false);
+    }
+
+    Span(String traceId, String spanId, String parentSpanId, String name, Span linkedSpan, Span previousCurrentSpan,
+         boolean standalone) {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.name = name;
+        this.linkedTraceId = linkedSpan != null ? linkedSpan.getTraceId() : null;
+        this.linkedSpanId = linkedSpan != null ? linkedSpan.getSpanId() : null;
+        this.previousCurrentSpan = previousCurrentSpan;
+        this.standalone = standalone;
+        Instant now = Instant.now();
+        this.startEpochNanos = now.getEpochSecond() * 1_000_000_000L + now.getNano();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Добавляет к отрезку атрибут, например URL запроса или id чата.
+     *
+     * @return этот же отрезок
+     */
+    public Span setAttribute(String key, Object value) {
+        attributes.put(key, value);
+        return this;
+    }
+
+    /**
+     * Отмечает, что операция завершилась ошибкой. Трассы с ошибками выгружаются всегда.
+     */
+    public void recordError(Throwable throwable) {
+        error = true;
+        setAttribute("exception", throwable.toString());
+    }
+
+    /**
+     * Завершает отрезок и делает текущим для потока тот отрезок, который был текущим до его создания.
+     */
+    @Override
+    public void close() {
+        if (durationNanos >= 0) {
+            return; // уже завершен
+        }
+        durationNanos = System.nanoTime() - startNanos;
+        Tracer.spanEnded(this, previousCurrentSpan);
+    }
+
+    /**
+     * Возвращает true, если это корневой отрезок трассы
+     */
+    public boolean isRoot() {
+        return parentSpanId == null;
+    }
+
+    // true, если трасса отрезка не регистрируется как незавершенная и выгружается только из него самого
+    boolean isStandalone() {
+        return standalone;
+    }
+
+    /**
+     * Возвращает копию атрибутов отрезка
+     */
+    public Map<String, Object> getAttributes() {
+        synchronized (attributes) {
+            return new LinkedHashMap<>(attributes);
+        }
+    }
+}
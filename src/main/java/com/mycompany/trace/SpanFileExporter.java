@@ -0,0 +1,151 @@
+package com.mycompany.trace;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Выгружает трассы в файл в формате OTLP/JSON (JSON-представление протокола OpenTelemetry): одна строка - одна трасса,
+ * записанная как сообщение ExportTraceServiceRequest:
+ *
+ *   {"resourceSpans": [{"resource": {"attributes": [service.name]},
+ *                       "scopeSpans": [{"scope": {"name": "com.mycompany.trace"}, "spans": [отрезки]}]}]}
+ *
+ * Атрибуты записываются списком пар [{"key": ..., "value": {"stringValue" | "intValue" | "doubleValue" | "boolValue":
+ * ...}}], статус - {"code": 1} (OK) или {"code": 2} (ERROR), ссылка на отрезок другой трассы -
+ * {"links": [{"traceId", "spanId"}]}.
+ * Такой файл читает, например, приемник otlpjsonfile в OpenTelemetry Collector, который может переслать трассы в
+ * Jaeger, Tempo и т.п.
+ *
+ * Запись идет в отдельном потоке, чтобы не задерживать обработку запросов пользователей.
+ */
+class SpanFileExporter {
+
+    // имя сервиса (атрибут service.name ресурса) и имя библиотеки, создавшей отрезки (scope)
+    private static final String SERVICE_NAME = "exchange-info-telegram-bot";
+    private static final String SCOPE_NAME = "com.mycompany.trace";
+
+    // значения поля kind отрезка в OTLP: SPAN_KIND_INTERNAL
+    private static final int SPAN_KIND_INTERNAL = 1;
+
+    // значения поля code статуса отрезка в OTLP
+    private static final int STATUS_CODE_OK = 1;
+    private static final int STATUS_CODE_ERROR = 2;
+
+    private final Path file;
+    private final Gson gson = new Gson();
+
+    // Поток для записи в файл. Создается при первой выгрузке, признак daemon позволяет ему не мешать завершению
+    // приложения.
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "span-file-exporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    SpanFileExporter(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Асинхронно дописывает трассу (все ее отрезки) в конец файла
+     */
+    void export(Collection<Span> spans) {
+        List<Span> spansCopy = new ArrayList<>(spans);
+        writer.execute(() -> write(spansCopy));
+    }
+
+    // дописывает трассу в конец файла одной строкой
+    private void write(List<Span> spans) {
+        try {
+            Path directory = file.toAbsolutePath().getParent();
+            if (directory != null) {
+                Files.createDirectories(directory);
+            }
+            try (BufferedWriter bufferedWriter = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                bufferedWriter.write(gson.toJson(toExportTraceServiceRequest(spans)));
+                bufferedWriter.newLine();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Преобразует отрезки в Map, которая сериализуется в json сообщения ExportTraceServiceRequest. Все отрезки
+    // относятся к одному ресурсу (этому приложению) и одной библиотеке трассировки.
+    private static Map<String, Object> toExportTraceServiceRequest(List<Span> spans) {
+        List<Map<String, Object>> otlpSpans = new ArrayList<>(spans.size());
+        for (Span span : spans) {
+            otlpSpans.add(toOtlpSpan(span));
+        }
+        Map<String, Object> scopeSpans = new LinkedHashMap<>();
+        scopeSpans.put("scope", Map.of("name", SCOPE_NAME));
+        scopeSpans.put("spans", otlpSpans);
+
+        Map<String, Object> resourceSpans = new LinkedHashMap<>();
+        resourceSpans.put("resource", Map.of("attributes", toOtlpAttributes(Map.of("service.name", SERVICE_NAME))));
+        resourceSpans.put("scopeSpans", List.of(scopeSpans));
+
+        return Map.of("resourceSpans", List.of(resourceSpans));
+    }
+
+    // преобразует отрезок в Map, которая сериализуется в json отрезка (Span) в формате OTLP/JSON
+    private static Map<String, Object> toOtlpSpan(Span span) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("traceId", span.getTraceId());
+        json.put("spanId", span.getSpanId());
+        if (span.getParentSpanId() != null) {
+            json.put("parentSpanId", span.getParentSpanId());
+        }
+        json.put("name", span.getName());
+        json.put("kind", SPAN_KIND_INTERNAL);
+        // время в нс не помещается в double без потери точности, поэтому в OTLP/JSON оно записывается строкой
+        json.put("startTimeUnixNano", Long.toString(span.getStartEpochNanos()));
+        json.put("endTimeUnixNano", Long.toString(span.getStartEpochNanos() + span.getDurationNanos()));
+        json.put("attributes", toOtlpAttributes(span.getAttributes()));
+        if (span.getLinkedSpanId() != null) {
+            json.put("links", List.of(Map.of("traceId", span.getLinkedTraceId(), "spanId", span.getLinkedSpanId())));
+        }
+        json.put("status", Map.of("code", span.isError() ? STATUS_CODE_ERROR : STATUS_CODE_OK));
+        return json;
+    }
+
+    // преобразует атрибуты в список пар ключ - типизированное значение (KeyValue и AnyValue в OTLP)
+    private static List<Map<String, Object>> toOtlpAttributes(Map<String, Object> attributes) {
+        List<Map<String, Object>> otlpAttributes = new ArrayList<>(attributes.size());
+        attributes.forEach((key, value) -> {
+            Map<String, Object> attribute = new LinkedHashMap<>();
+            attribute.put("key", key);
+            attribute.put("value", toOtlpValue(value));
+            otlpAttributes.add(attribute);
+        });
+        return otlpAttributes;
+    }
+
+    private static Map<String, ?> toOtlpValue(Object value) {
+        if (value instanceof Boolean) {
+            return Map.of("boolValue", value);
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            // целые числа в OTLP/JSON 64-битные и, как и время, записываются строкой
+            return Map.of("intValue", value.toString());
+        }
+        if (value instanceof Double || value instanceof Float) {
+            return Map.of("doubleValue", ((Number) value).doubleValue());
+        }
+        return Map.of("stringValue", String.valueOf(value));
+    }
+}
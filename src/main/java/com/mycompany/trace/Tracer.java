@@ -0,0 +1,225 @@
+package com.mycompany.trace;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Создает отрезки трасс (см. Span) и решает, какие трассы выгружать.
+ *
+ * Решение о выгрузке принимается по всей трассе целиком, когда завершается ее корневой отрезок ("tail sampling"):
+ * медленные трассы (корневой отрезок дольше tracing.slow-threshold-ms, по умолчанию 1000 мс) и трассы с ошибками
+ * выгружаются всегда, а из остальных - только доля tracing.sample-ratio (по умолчанию 1%). Так в файле оказываются
+ * все медленные запросы, а быстрые не забивают его. Выгружаются трассы в файл tracing.file (по умолчанию
+ * traces/spans.jsonl), трассировку можно отключить свойством tracing.enabled=false. Свойства передаются методом
+ * configure() при запуске приложения.
+ *
+ * Отрезки, завершившиеся после корневого (например, проигравший хеджированный запрос к бирже), в трассу не попадают.
+ * Поэтому операции, которые только планируются во время обработки запроса, а выполняются позже (отправка сообщений
+ * из очереди), записываются отдельными трассами со ссылкой на запланировавший их отрезок (см. startLinkedSpan).
+ * Количество отрезков в одной трассе ограничено MAX_SPANS_PER_TRACE, чтобы трасса ежедневной рассылки всем
+ * пользователям не занимала память по отрезку на каждого пользователя. Сколько отрезков не попало в трассу из-за
+ * этого ограничения, записывается в атрибут dropped_spans корневого отрезка.
+ *
+ * Для массовых операций без дочерних отрезков (отправка каждого сообщения рассылки) решение о выборке принимается
+ * заранее, при создании корневого отрезка (см. startSampledLinkedSpan): иначе рассылка миллиону пользователей
+ * держала бы миллион незавершенных трасс, чтобы выгрузить из них около 1%.
+ */
+public final class Tracer {
+
+    private static volatile boolean enabled = true;
+    private static volatile long slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(1000);
+    private static volatile double sampleRatio = 0.01;
+
+    // текущий (последний незавершенный) отрезок каждого потока
+    private static final ThreadLocal<Span> currentSpan = new ThreadLocal<>();
+
+    // максимальное количество отрезков в одной трассе
+    private static final int MAX_SPANS_PER_TRACE = 1000;
+
+    // трассы, корневой отрезок которых еще не завершен; ключ - traceId
+    private static final Map<String, PendingTrace> pendingTraces = new ConcurrentHashMap<>();
+
+    private static volatile SpanFileExporter exporter = new SpanFileExporter(Path.of("traces/spans.jsonl"));
+
+    /**
+     * Запрещаем создавать экземпляры класса, так как он состоит только из статичных методов.
+     */
+    private Tracer() {}
+
+    /**
+     * Задает настройки трассировки. Вызывается при запуске приложения, до создания первого отрезка.
+     *
+     * @param tracingEnabled включена ли трассировка (свойство tracing.enabled)
+     * @param slowThresholdMillis трассы длиннее стольких мс выгружаются всегда (свойство tracing.slow-threshold-ms)
+     * @param tracingSampleRatio доля выгружаемых остальных трасс (свойство tracing.sample-ratio)
+     * @param file файл, в который выгружаются трассы (свойство tracing.file)
+     */
+    public static void configure(boolean tracingEnabled, long slowThresholdMillis, double tracingSampleRatio,
+                                 Path file) {
+        enabled = tracingEnabled;
+        slowThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowThresholdMillis);
+        sampleRatio = tracingSampleRatio;
+        exporter = new SpanFileExporter(file);
+    }
+
+    /**
+     * Создает отрезок, дочерний к текущему отрезку потока, а если текущего нет - корневой отрезок новой трассы.
+     * Созданный отрезок становится текущим для потока до своего завершения.
+     */
+    public static Span startSpan(String name) {
+        return startSpan(name, currentSpan.get());
+    }
+
+    /**
+     * Создает отрезок, дочерний к указанному. Нужен для операций, выполняемых в другом потоке: родительский отрезок
+     * запоминается методом currentSpan() в исходном потоке и передается сюда. Если parent равен null, создается
+     * корневой отрезок новой трассы.
+     */
+    public static Span startSpan(String name, Span parent) {
+        Span span;
+        if (parent == null) {
+            span = startRootSpan(name, null);
+        } else {
+            String spanId = toHex(ThreadLocalRandom.current().nextLong());
+            span = new Span(parent.getTraceId(), spanId, parent.getSpanId(), name, null, currentSpan.get());
+        }
+        currentSpan.set(span);
+        return span;
+    }
+
+    /**
+     * Создает корневой отрезок новой трассы, ссылающийся на указанный отрезок (обычно другой трассы). Нужен для
+     * операций, которые выполняются позже, чем завершается запланировавшая их трасса: дочерний отрезок такой трассы
+     * был бы отброшен, а отдельная трасса со ссылкой выгружается по своим правилам и находится по ссылке. Если linked
+     * равен null, создается обычный корневой отрезок. Созданный отрезок становится текущим для потока.
+     */
+    public static Span startLinkedSpan(String name, Span linked) {
+        Span span = startRootSpan(name, linked);
+        currentSpan.set(span);
+        return span;
+    }
+
+    /**
+     * Создает корневой отрезок новой трассы со ссылкой, как startLinkedSpan, но решает, попадет ли трасса в выборку
+     * tracing.sample-ratio, сразу, а не при завершении. Трасса, попавшая в выборку, выгружается целиком. Остальные не
+     * регистрируются как незавершенные, и из них выгружается только сам корневой отрезок, если он медленный или
+     * завершился ошибкой, а его дочерние отрезки отбрасываются. Поэтому метод подходит для частых операций без
+     * дочерних отрезков, например отправки сообщений рассылки.
+     */
+    public static Span startSampledLinkedSpan(String name, Span linked) {
+        Span span;
+        if (!enabled || ThreadLocalRandom.current().nextDouble() < sampleRatio) {
+            span = startRootSpan(name, linked, true);
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            span = new Span(toHex(random.nextLong()) + toHex(random.nextLong()), toHex(random.nextLong()), null, name,
+                    linked, currentSpan.get(), true);
+        }
+        currentSpan.set(span);
+        return span;
+    }
+
+    // создает корневой отрезок новой трассы и регистрирует трассу как незавершенную
+    private static Span startRootSpan(String name, Span linked) {
+        return startRootSpan(name, linked, false);
+    }
+
+    // То же, sampled - трасса уже попала в выборку и выгружается в любом случае
+    private static Span startRootSpan(String name, Span linked, boolean sampled) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String traceId = toHex(random.nextLong()) + toHex(random.nextLong());
+        Span span = new Span(traceId, toHex(random.nextLong()), null, name, linked, currentSpan.get());
+        if (enabled) {
+            pendingTraces.put(traceId, new PendingTrace(sampled));
+        }
+        return span;
+    }
+
+    /**
+     * Возвращает текущий отрезок потока или null, если его нет
+     */
+    public static Span currentSpan() {
+        return currentSpan.get();
+    }
+
+    // вызывается при завершении отрезка
+    static void spanEnded(Span span, Span previousCurrentSpan) {
+        currentSpan.set(previousCurrentSpan);
+        if (!enabled) {
+            return;
+        }
+
+        if (span.isStandalone()) {
+            if (isSlowOrFailed(span)) {
+                exporter.export(List.of(span));
+            }
+        } else if (span.isRoot()) {
+            PendingTrace trace = pendingTraces.remove(span.getTraceId());
+            if (trace != null && shouldExport(span, trace)) {
+                if (trace.droppedSpans.get() > 0) {
+                    span.setAttribute("dropped_spans", trace.droppedSpans.get());
+                }
+                trace.spans.add(span);
+                exporter.export(trace.spans);
+            }
+        } else {
+            PendingTrace trace = pendingTraces.get(span.getTraceId());
+            if (trace != null) {
+                trace.add(span);
+            }
+        }
+    }
+
+    // решает, выгружать ли трассу: медленные трассы и трассы с ошибками - всегда, остальные - выборочно
+    private static boolean shouldExport(Span rootSpan, PendingTrace trace) {
+        return isSlowOrFailed(rootSpan)
+                || trace.hasErrors
+                || trace.sampled
+                || ThreadLocalRandom.current().nextDouble() < sampleRatio;
+    }
+
+    // true, если отрезок дольше tracing.slow-threshold-ms или завершился ошибкой
+    private static boolean isSlowOrFailed(Span span) {
+        return span.getDurationNanos() >= slowThresholdNanos || span.isError();
+    }
+
+    // переводит число в шестнадцатеричную строку фиксированной длины (16 символов)
+    private static String toHex(long value) {
+        return String.format("%016x", value);
+    }
+
+    /**
+     * Завершенные отрезки трассы, корневой отрезок которой еще не завершен.
+     */
+    private static class PendingTrace {
+
+        private final Queue<Span> spans = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger spansCount = new AtomicInteger();
+        private final AtomicInteger droppedSpans = new AtomicInteger();
+        private final boolean sampled; // трасса попала в выборку при создании корневого отрезка
+        private volatile boolean hasErrors;
+
+        PendingTrace(boolean sampled) {
+            this.sampled = sampled;
+        }
+
+        // добавляет отрезок, если лимит отрезков трассы еще не исчерпан
+        void add(Span span) {
+            if (span.isError()) {
+                hasErrors = true;
+            }
+            if (spansCount.incrementAndGet() <= MAX_SPANS_PER_TRACE) {
+                spans.add(span);
+            } else {
+                droppedSpans.incrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,5 @@
+/**
+ * Пакет содержит простую трассировку запросов в стиле OpenTelemetry: трассы (traces) из вложенных отрезков (spans),
+ * выборку трасс по длительности и их выгрузку в файл.
+ * */
+package com.mycompany.trace;
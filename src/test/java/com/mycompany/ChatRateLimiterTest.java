@@ -0,0 +1,186 @@
+package com.mycompany;
+
+import com.mycompany.ChatRateLimiter.Decision;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatRateLimiterTest {
+
+    // 3 запроса подряд, затем 1 запрос в секунду; ведро полностью восстанавливается за 3 с
+    private static final int BURST = 3;
+    private static final int PER_MINUTE = 60;
+    private static final long IDLE_MILLIS = 3_000;
+
+    // минимальная емкость таблицы, см. ChatRateLimiter.MIN_CAPACITY
+    private static final int MIN_CAPACITY = 1024;
+
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+    private final ChatRateLimiter limiter = new ChatRateLimiter(BURST, PER_MINUTE, clock::get);
+
+    @Test
+    void burstThenNotifyOnceThenSilent() {
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(Decision.ALLOWED, limiter.tryAcquire(42));
+        }
+        assertEquals(Decision.THROTTLED_NOTIFY, limiter.tryAcquire(42));
+        assertEquals(Decision.THROTTLED_SILENT, limiter.tryAcquire(42));
+        assertEquals(Decision.THROTTLED_SILENT, limiter.tryAcquire(42));
+
+        // другие чаты ограничение не затрагивает
+        assertEquals(Decision.ALLOWED, limiter.tryAcquire(43));
+    }
+
+    @Test
+    void tokensRefillOverTime() {
+        for (int i = 0; i < BURST; i++) {
+            limiter.tryAcquire(42);
+        }
+        assertEquals(Decision.THROTTLED_NOTIFY, limiter.tryAcquire(42));
+
+        clock.addAndGet(500); // полжетона
+        assertEquals(Decision.THROTTLED_SILENT, limiter.tryAcquire(42));
+
+        clock.addAndGet(500); // жетон восстановился - запрос разрешен, и предупреждение снова будет отправлено
+        assertEquals(Decision.ALLOWED, limiter.tryAcquire(42));
+        assertEquals(Decision.THROTTLED_NOTIFY, limiter.tryAcquire(42));
+
+        clock.addAndGet(IDLE_MILLIS); // ведро полностью восстановилось, но не больше burst жетонов
+        for (int i = 0; i < BURST; i++) {
+            assertEquals(Decision.ALLOWED, limiter.tryAcquire(42));
+        }
+        assertEquals(Decision.THROTTLED_NOTIFY, limiter.tryAcquire(42));
+    }
+
+    @Test
+    void collidingChatsStayReachableAfterDeletion() {
+        // Цепочка из чатов с одной "идеальной" ячейкой в конце таблицы: часть цепочки переходит через ее конец.
+        List<Long> chain = chatsWithHomeSlot(MIN_CAPACITY - 1, 4);
+        long first = chain.get(0);
+        limiter.tryAcquire(first);
+
+        // остальные чаты цепочки исчерпывают свои ведра незадолго до того, как первый чат "остынет"
+        clock.addAndGet(IDLE_MILLIS - 1);
+        for (long chatId : chain.subList(1, chain.size())) {
+            for (int i = 0; i < BURST; i++) {
+                assertEquals(Decision.ALLOWED, limiter.tryAcquire(chatId));
+            }
+            assertEquals(Decision.THROTTLED_NOTIFY, limiter.tryAcquire(chatId));
+        }
+
+        // первый чат удаляется со сдвигом остальных элементов цепочки на его место
+        clock.addAndGet(2);
+        sweepWholeTable(chain.get(1));
+        assertEquals(chain.size() - 1, limiter.size());
+
+        // остальные чаты находятся на новых местах вместе со своим состоянием
+        for (long chatId : chain.subList(1, chain.size())) {
+            assertEquals(Decision.THROTTLED_SILENT, limiter.tryAcquire(chatId), "chat " + chatId);
+        }
+        assertEquals(Decision.ALLOWED, limiter.tryAcquire(first));
+    }
+
+    @Test
+    void idleChatsAreEvicted() {
+        for (long chatId = 1; chatId <= 100; chatId++) {
+            limiter.tryAcquire(chatId);
+        }
+        assertEquals(100, limiter.size());
+
+        clock.addAndGet(IDLE_MILLIS);
+        sweepWholeTable(1_000);
+        assertEquals(1, limiter.size());
+    }
+
+    @Test
+    void tableShrinksAfterSpike() {
+        for (long chatId = 1; chatId <= 5_000; chatId++) {
+            limiter.tryAcquire(chatId);
+        }
+        int peakCapacity = limiter.capacity();
+        assertTrue(peakCapacity >= 2 * 5_000, "capacity " + peakCapacity);
+
+        clock.addAndGet(IDLE_MILLIS);
+        for (int i = 0; i < peakCapacity && limiter.capacity() > MIN_CAPACITY; i++) {
+            limiter.tryAcquire(1_000_000);
+        }
+        assertEquals(MIN_CAPACITY, limiter.capacity());
+        assertEquals(1, limiter.size());
+
+        // после уменьшения таблица работает как прежде
+        assertEquals(Decision.ALLOWED, limiter.tryAcquire(1));
+        assertEquals(2, limiter.size());
+    }
+
+    @Test
+    void matchesSimpleModelUnderRandomRequests() {
+        // Немного чатов и время, идущее скачками: ведра то исчерпываются, то "остывают" и удаляются, а таблица
+        // растет и уменьшается. Удаление "остывших" ведер не должно менять решений - сравниваем с моделью без него.
+        SplittableRandom random = new SplittableRandom(1);
+        Map<Long, Bucket> model = new HashMap<>();
+        double tokensPerMilli = PER_MINUTE / 60_000.0;
+        for (int i = 0; i < 300_000; i++) {
+            if (random.nextInt(1_000) == 0) {
+                clock.addAndGet(random.nextLong(2 * IDLE_MILLIS));
+            } else {
+                clock.addAndGet(random.nextLong(20));
+            }
+            // иногда много новых чатов сразу - таблица растет
+            long chatId = random.nextInt(100) == 0 ? 1 + random.nextLong(100_000) : 1 + random.nextLong(3_000);
+            long now = clock.get();
+
+            Bucket bucket = model.computeIfAbsent(chatId, key -> new Bucket(BURST, now));
+            bucket.tokens = (float) Math.min(BURST, bucket.tokens + (now - bucket.lastRefillMillis) * tokensPerMilli);
+            bucket.lastRefillMillis = now;
+            Decision expected;
+            if (bucket.tokens >= 1) {
+                bucket.tokens -= 1;
+                bucket.noticeSent = false;
+                expected = Decision.ALLOWED;
+            } else {
+                expected = bucket.noticeSent ? Decision.THROTTLED_SILENT : Decision.THROTTLED_NOTIFY;
+                bucket.noticeSent = true;
+            }
+            assertEquals(expected, limiter.tryAcquire(chatId), "request " + i + ", chat " + chatId);
+        }
+    }
+
+    // состояние ведра чата в модели ограничителя
+    private static class Bucket {
+        float tokens;
+        long lastRefillMillis;
+        boolean noticeSent;
+
+        Bucket(float tokens, long lastRefillMillis) {
+            this.tokens = tokens;
+            this.lastRefillMillis = lastRefillMillis;
+        }
+    }
+
+    // находит count чатов, поиск которых в таблице начинается с ячейки homeSlot
+    private List<Long> chatsWithHomeSlot(int homeSlot, int count) {
+        List<Long> chats = new ArrayList<>();
+        for (long chatId = 1; chats.size() < count; chatId++) {
+            if (limiter.homeSlotOf(chatId) == homeSlot) {
+                chats.add(chatId);
+            }
+        }
+        return chats;
+    }
+
+    // Запросами из одного чата проверяет все ячейки таблицы на "остывшие" ведра (4 ячейки за запрос). После удаления
+    // ведра та же ячейка проверяется еще раз, поэтому на каждое удаляемое ведро нужна еще одна проверка.
+    private void sweepWholeTable(long chatId) {
+        int checks = limiter.capacity() + limiter.size();
+        for (int i = 0; i < checks / 4 + 1; i++) {
+            limiter.tryAcquire(chatId);
+        }
+    }
+}
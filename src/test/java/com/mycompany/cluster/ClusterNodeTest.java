@@ -0,0 +1,241 @@
+package com.mycompany.cluster;
+
+import com.mycompany.currency.CurrencyQuotes;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Два узла кластера в одной JVM с общей БД H2 в памяти. Время узлов задается вручную, а сигналы "я жив" тест
+ * вызывает сам, поэтому истечение аренды лидера проверяется без ожидания.
+ */
+class ClusterNodeTest {
+
+    private static final int SUBSCRIBERS = 1000;
+
+    @TempDir
+    Path tempDir;
+
+    private final AtomicLong clock = new AtomicLong(1_000_000);
+
+    // Если не -1, БД недоступна: получение соединения "висит" столько мс по часам узлов и заканчивается ошибкой
+    private volatile long connectionTimeoutMillis = -1;
+
+    private HikariDataSource dataSource;
+    private ClusterNode node1;
+    private ClusterNode node2;
+    private final List<Boolean> node1Leadership = new ArrayList<>();
+    private final List<Boolean> node2Leadership = new ArrayList<>();
+
+    @BeforeEach
+    void startNodes() throws SQLException {
+        dataSource = new HikariDataSource();
+        dataSource.setJdbcUrl("jdbc:h2:mem:cluster-" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        dataSource.setMaximumPoolSize(4);
+        ClusterDatabase database = new ClusterDatabase(failingWhenRequested(dataSource));
+
+        node1 = new ClusterNode(database, "node1", clock::get);
+        node2 = new ClusterNode(database, "node2", clock::get);
+        node1.join(newQuotes("node1"), node1Leadership::add);
+        node2.join(newQuotes("node2"), node2Leadership::add);
+    }
+
+    @AfterEach
+    void closeDatabase() {
+        dataSource.close();
+    }
+
+    @Test
+    void firstNodeBecomesLeader() {
+        node1.heartbeat();
+        node2.heartbeat();
+
+        assertTrue(node1.isLeader());
+        assertFalse(node2.isLeader());
+        assertEquals(List.of(true), node1Leadership);
+        assertEquals(List.of(), node2Leadership);
+    }
+
+    @Test
+    void leaseMovesToOtherNodeAfterExpiry() {
+        node1.heartbeat();
+        node2.heartbeat();
+
+        // лидер продлевает аренду - второй узел ее не получает
+        clock.addAndGet(15_000);
+        node1.heartbeat();
+        node2.heartbeat();
+        assertTrue(node1.isLeader());
+        assertFalse(node2.isLeader());
+
+        // лидер перестал продлевать аренду - после ее истечения лидером становится второй узел
+        clock.addAndGet(21_000);
+        node2.heartbeat();
+        assertTrue(node2.isLeader());
+
+        // прежний лидер при следующем сигнале "я жив" узнает, что аренду держит другой узел
+        node1.heartbeat();
+        assertFalse(node1.isLeader());
+        assertEquals(List.of(true, false), node1Leadership);
+        assertEquals(List.of(true), node2Leadership);
+    }
+
+    @Test
+    void leaderKeepsLeaseDuringShortDatabaseOutage() {
+        node1.heartbeat();
+        node2.heartbeat();
+
+        // БД сразу отвечает ошибкой - аренда еще действует, лидер остается лидером
+        clock.addAndGet(5_000);
+        connectionTimeoutMillis = 0;
+        node1.heartbeat();
+        assertTrue(node1.isLeader());
+        assertEquals(List.of(true), node1Leadership);
+    }
+
+    @Test
+    void leaderStepsDownWhenFailedDatabaseCallOutlivesLease() {
+        node1.heartbeat();
+        node2.heartbeat();
+
+        // обращение к БД висит 30 с и заканчивается ошибкой - к этому моменту аренда уже истекла
+        clock.addAndGet(5_000);
+        connectionTimeoutMillis = 30_000;
+        node1.heartbeat();
+        assertFalse(node1.isLeader());
+        assertEquals(List.of(true, false), node1Leadership);
+
+        // аренду получает второй узел, и лидер в кластере по-прежнему один
+        connectionTimeoutMillis = -1;
+        node2.heartbeat();
+        assertTrue(node2.isLeader());
+        node1.heartbeat();
+        assertFalse(node1.isLeader());
+    }
+
+    @Test
+    void stoppedLeaderReleasesLeaseImmediately() {
+        node1.heartbeat();
+        node2.heartbeat();
+        assertTrue(node1.isLeader());
+
+        node1.stop();
+        node2.heartbeat();
+        assertTrue(node2.isLeader());
+    }
+
+    @Test
+    void broadcastSplitsSubscribersBetweenNodes() {
+        Set<Long> subscribers = addSubscribers();
+        node1.heartbeat();
+        node2.heartbeat();
+        node1.heartbeat(); // лидер узнает о втором узле
+
+        // лидер записывает состав рассылки, второй узел читает тот же состав
+        List<String> membership = node1.getBroadcastMembership(1);
+        assertEquals(List.of("node1", "node2"), membership);
+        assertEquals(membership, node2.getBroadcastMembership(1));
+
+        Set<Long> node1Subscribers = collectOwnSubscribers(node1, membership);
+        Set<Long> node2Subscribers = collectOwnSubscribers(node2, membership);
+
+        Set<Long> all = new HashSet<>(node1Subscribers);
+        all.addAll(node2Subscribers);
+        assertEquals(subscribers, all);
+        assertEquals(SUBSCRIBERS, node1Subscribers.size() + node2Subscribers.size(), "пользователи узлов пересекаются");
+        assertTrue(node1Subscribers.size() > SUBSCRIBERS / 4, "доля узла node1: " + node1Subscribers.size());
+        assertTrue(node2Subscribers.size() > SUBSCRIBERS / 4, "доля узла node2: " + node2Subscribers.size());
+    }
+
+    @Test
+    void removedSubscriberIsNotInBroadcast() {
+        Set<Long> subscribers = addSubscribers();
+        long removed = subscribers.iterator().next();
+        node2.removeSubscriber(removed);
+        node2.flushSubscriberWrites();
+        subscribers.remove(removed);
+
+        node1.heartbeat();
+        assertEquals(subscribers, collectOwnSubscribers(node1, node1.getBroadcastMembership(1)));
+    }
+
+    @Test
+    void nextBroadcastAfterNodeFailureGoesToRemainingNode() {
+        Set<Long> subscribers = addSubscribers();
+        node1.heartbeat();
+        node2.heartbeat();
+        node1.heartbeat();
+        List<String> firstMembership = node1.getBroadcastMembership(1);
+
+        // первый узел упал, не освободив аренду: второй узел становится лидером после ее истечения
+        clock.addAndGet(21_000);
+        node2.heartbeat();
+        assertTrue(node2.isLeader());
+
+        List<String> secondMembership = node2.getBroadcastMembership(2);
+        assertEquals(List.of("node2"), secondMembership);
+        assertEquals(subscribers, collectOwnSubscribers(node2, secondMembership));
+
+        // состав уже начатой рассылки не меняется
+        assertEquals(firstMembership, node2.getBroadcastMembership(1));
+    }
+
+    // добавляет пользователей через оба узла и ждет их записи в БД
+    private Set<Long> addSubscribers() {
+        Set<Long> subscribers = new HashSet<>();
+        for (long chatId = 1; chatId <= SUBSCRIBERS; chatId++) {
+            long id = chatId * 7919; // id чатов в Telegram не идут подряд
+            (chatId % 2 == 0 ? node1 : node2).addSubscriber(id);
+            subscribers.add(id);
+        }
+        node1.flushSubscriberWrites();
+        node2.flushSubscriberWrites();
+        return subscribers;
+    }
+
+    private static Set<Long> collectOwnSubscribers(ClusterNode node, List<String> membership) {
+        Set<Long> subscribers = new HashSet<>();
+        node.forEachOwnSubscriber(membership, subscribers::add);
+        return subscribers;
+    }
+
+    // DataSource, который при connectionTimeoutMillis != -1 ведет себя как пул, не дождавшийся соединения с БД
+    private DataSource failingWhenRequested(DataSource target) {
+        return (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {DataSource.class},
+                (proxy, method, args) -> {
+                    long timeoutMillis = connectionTimeoutMillis;
+                    if (timeoutMillis != -1 && method.getName().equals("getConnection")) {
+                        clock.addAndGet(timeoutMillis);
+                        throw new SQLTransientConnectionException("Connection is not available, request timed out");
+                    }
+                    try {
+                        return method.invoke(target, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+    }
+
+    private CurrencyQuotes newQuotes(String nodeId) {
+        return new CurrencyQuotes(Duration.ofMinutes(1), Duration.ofMinutes(1),
+                tempDir.resolve(nodeId + "-quotes-snapshot.bin"));
+    }
+}
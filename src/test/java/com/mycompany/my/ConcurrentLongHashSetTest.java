@@ -0,0 +1,130 @@
+package com.mycompany.my;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConcurrentLongHashSetTest {
+
+    @Test
+    void addRemoveContains() {
+        ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+
+        assertTrue(set.add(42));
+        assertFalse(set.add(42));
+        assertTrue(set.contains(42));
+        assertEquals(1, set.size());
+
+        assertTrue(set.remove(42));
+        assertFalse(set.remove(42));
+        assertFalse(set.contains(42));
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    void specialValues() {
+        // 0 хранится отдельным флагом, остальные крайние значения - в таблице как обычные числа
+        long[] values = {0, Long.MIN_VALUE, Long.MAX_VALUE, -1, 1};
+        ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+        for (long value : values) {
+            assertTrue(set.add(value), "add " + value);
+        }
+        assertEquals(values.length, set.size());
+
+        Set<Long> visited = new HashSet<>();
+        set.forEach(visited::add);
+        assertEquals(Set.of(0L, Long.MIN_VALUE, Long.MAX_VALUE, -1L, 1L), visited);
+
+        for (long value : values) {
+            assertTrue(set.contains(value), "contains " + value);
+            assertTrue(set.remove(value), "remove " + value);
+            assertFalse(set.contains(value), "contains after remove " + value);
+        }
+        assertEquals(0, set.size());
+    }
+
+    @Test
+    void matchesHashSetUnderRandomAddsAndRemoves() {
+        // Небольшой диапазон чисел и много удалений: в таблицах получаются длинные цепочки пробирования, и удаление
+        // со сдвигом проверяется на всех вариантах расположения элементов, в том числе с переходом через конец таблицы.
+        SplittableRandom random = new SplittableRandom(1);
+        ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+        Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < 1_000_000; i++) {
+            long value = random.nextLong(-5_000, 5_000);
+            if (random.nextBoolean()) {
+                assertEquals(expected.add(value), set.add(value), "add " + value);
+            } else {
+                assertEquals(expected.remove(value), set.remove(value), "remove " + value);
+            }
+        }
+
+        assertEquals(expected.size(), set.size());
+        for (long value = -5_000; value < 5_000; value++) {
+            assertEquals(expected.contains(value), set.contains(value), "contains " + value);
+        }
+    }
+
+    @Test
+    void removeKeepsOtherValuesReachableAfterGrowth() {
+        ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+        for (long value = 1; value <= 100_000; value++) {
+            set.add(value);
+        }
+        for (long value = 1; value <= 100_000; value += 2) {
+            assertTrue(set.remove(value));
+        }
+        for (long value = 1; value <= 100_000; value++) {
+            assertEquals(value % 2 == 0, set.contains(value), "contains " + value);
+        }
+        assertEquals(50_000, set.size());
+    }
+
+    @Test
+    void forEachUnderConcurrentModification() throws InterruptedException {
+        // числа 1..stableCount есть в множестве все время обхода, а числа от churnStart добавляются и удаляются
+        final int stableCount = 200_000;
+        final long churnStart = 1_000_000;
+        ConcurrentLongHashSet set = new ConcurrentLongHashSet();
+        for (long value = 1; value <= stableCount; value++) {
+            set.add(value);
+        }
+
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            SplittableRandom random = new SplittableRandom(2);
+            while (!stop.get()) {
+                long value = churnStart + random.nextLong(100_000);
+                if (random.nextBoolean()) {
+                    set.add(value);
+                } else {
+                    set.remove(value);
+                }
+            }
+        });
+        writer.start();
+        try {
+            for (int round = 0; round < 20; round++) {
+                int[] stableVisits = new int[stableCount + 1];
+                set.forEach(value -> {
+                    if (value >= 1 && value <= stableCount) {
+                        stableVisits[(int) value]++;
+                    } else {
+                        assertTrue(value >= churnStart && value < churnStart + 100_000, "unexpected " + value);
+                    }
+                });
+                for (int value = 1; value <= stableCount; value++) {
+                    assertEquals(1, stableVisits[value], "visits of " + value);
+                }
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+}